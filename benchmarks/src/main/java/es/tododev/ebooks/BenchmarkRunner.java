@@ -0,0 +1,118 @@
+package es.tododev.ebooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Runs the benchmarks with the GC profiler and compares the results with a saved baseline. The usual JMH options are
+ * accepted. The baseline is configured with system properties:
+ * <ul>
+ * <li>baseline: JMH JSON results to compare with, baseline.json by default.</li>
+ * <li>baseline.tolerance: how much slower or allocating more a benchmark can be, 0.10 by default.</li>
+ * <li>baseline.update: saves the results as the new baseline instead of comparing them.</li>
+ * </ul>
+ * It exits with 1 when any benchmark regressed.
+ */
+public class BenchmarkRunner {
+
+    private static final String RESULTS = "target/jmh-result.json";
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        Options options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON).result(RESULTS).build();
+        new Runner(options).run();
+        File baseline = new File(System.getProperty("baseline", "baseline.json"));
+        if (Boolean.getBoolean("baseline.update")) {
+            Files.copy(new File(RESULTS).toPath(), baseline.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Saved baseline " + baseline.getAbsolutePath());
+        } else if (baseline.exists()) {
+            double tolerance = Double.parseDouble(System.getProperty("baseline.tolerance", "0.10"));
+            List<String> regressions = compare(read(baseline), read(new File(RESULTS)), tolerance);
+            if (!regressions.isEmpty()) {
+                System.out.println("Regressions against " + baseline.getAbsolutePath() + ":");
+                regressions.forEach(System.out::println);
+                System.exit(1);
+            }
+            System.out.println("No regressions against " + baseline.getAbsolutePath());
+        } else {
+            System.out.println("There is no baseline in " + baseline.getAbsolutePath());
+        }
+    }
+
+    static List<String> compare(Map<String, Score> baseline, Map<String, Score> current, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        System.out.println(String.format("%-70s %14s %14s %16s %16s", "BENCHMARK", "BASELINE", "CURRENT",
+                "BASELINE B/OP", "CURRENT B/OP"));
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score before = baseline.get(entry.getKey());
+            Score after = entry.getValue();
+            if (before == null) {
+                System.out.println(String.format("%-70s %14s %14.3f", entry.getKey(), "-", after.score));
+                continue;
+            }
+            System.out.println(String.format("%-70s %14.3f %14.3f %16.0f %16.0f", entry.getKey(), before.score,
+                    after.score, before.allocation, after.allocation));
+            if (after.score > before.score * (1 + tolerance)) {
+                regressions.add(String.format("%s is %.1f%% slower", entry.getKey(),
+                        (after.score / before.score - 1) * 100));
+            }
+            if (before.allocation > 0 && after.allocation > before.allocation * (1 + tolerance)) {
+                regressions.add(String.format("%s allocates %.1f%% more", entry.getKey(),
+                        (after.allocation / before.allocation - 1) * 100));
+            }
+        }
+        return regressions;
+    }
+
+    // Scores of a JMH JSON result file by benchmark and parameters
+    static Map<String, Score> read(File results) throws IOException {
+        Map<String, Score> scores = new TreeMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(results)) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText());
+            Map<String, String> params = new TreeMap<>();
+            result.path("params").fields()
+                    .forEachRemaining(param -> params.put(param.getKey(), param.getValue().asText()));
+            if (!params.isEmpty()) {
+                key.append(params);
+            }
+            double allocation = 0;
+            // Older JMH versions prefix the secondary metrics with a dot
+            JsonNode secondary = result.path("secondaryMetrics");
+            for (String name : new String[] { ALLOCATION, "·" + ALLOCATION }) {
+                if (secondary.has(name)) {
+                    allocation = secondary.get(name).path("score").asDouble();
+                }
+            }
+            scores.put(key.toString(), new Score(result.path("primaryMetric").path("score").asDouble(), allocation));
+        }
+        return scores;
+    }
+
+    static class Score {
+        final double score;
+        final double allocation;
+
+        Score(double score, double allocation) {
+            this.score = score;
+            this.allocation = allocation;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package es.tododev.ebooks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Every stage of the conversion of a synthetic book. The book is downloaded once per trial and the stages after the
+ * download work on it, so they can be compared on their own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param("40")
+    public int chapters;
+    @Param("20000")
+    public int chapterSize;
+    @Param("10")
+    public int images;
+    @Param("1200")
+    public int imageSize;
+    @Param("600")
+    public int rules;
+    @Param("true")
+    public boolean pruneCss;
+    private SyntheticBook synthetic;
+    private Context context;
+    private Context bookContext;
+    private BookData book;
+    private Path output;
+    private List<ResourceItem> chapterItems;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        synthetic = new SyntheticBook(chapters, chapterSize, images, imageSize, rules);
+        Properties properties = synthetic.properties();
+        properties.setProperty("image.max.dimension", Integer.toString(imageSize / 2));
+        properties.setProperty("pdf.css.prune", Boolean.toString(pruneCss));
+        context = new Context(properties);
+        output = Files.createTempDirectory("ebooks-benchmark");
+        // The book of the writers is not transcoded, so they always get images of the same size
+        bookContext = new Context(synthetic.properties());
+        book = new BookData(bookContext, SyntheticBook.ISBN);
+        book.fetch();
+        chapterItems = new ArrayList<>();
+        for (ResourceItem item : book.getResources()) {
+            if ("chapter".equals(item.kind)) {
+                chapterItems.add(item);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        book.close();
+        bookContext.close();
+        context.close();
+        synthetic.close();
+        try (Stream<Path> files = Files.walk(output)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int fetch() throws Exception {
+        try (BookData data = new BookData(context, SyntheticBook.ISBN)) {
+            data.fetch();
+            return data.getResources().size();
+        }
+    }
+
+    @Benchmark
+    public void rewriteMediaLinks(Blackhole blackhole) throws IOException {
+        MediaLinkRewriter rewriter = new MediaLinkRewriter(book.getMedia());
+        for (ResourceItem item : chapterItems) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) item.content.size() + 1024);
+            try (InputStream input = item.content.openStream()) {
+                blackhole.consume(rewriter.rewrite(item, input, content));
+            }
+            blackhole.consume(content.toByteArray());
+        }
+    }
+
+    @Benchmark
+    public void transcodeImages(Blackhole blackhole) throws IOException {
+        ImageTranscoder transcoder = new ImageTranscoder(context);
+        // The transcoder replaces the content, so it works on copies of the images
+        try (ResourceStore store = context.createResourceStore(SyntheticBook.ISBN)) {
+            for (ResourceItem item : book.getMedia().values()) {
+                ResourceItem copy;
+                try (InputStream input = item.content.openStream()) {
+                    copy = new ResourceItem(item.pageUrl, item.mediaType, item.fullPath, item.fileName, item.kind,
+                            store.store(input));
+                }
+                transcoder.transcode(copy, store);
+                blackhole.consume(copy.content.size());
+            }
+        }
+    }
+
+    @Benchmark
+    public Object checksums() throws IOException {
+        return BookManifest.checksums(book);
+    }
+
+    @Benchmark
+    public long writeEpub() throws IOException {
+        File epub = output.resolve("book.epub").toFile();
+        try (StreamingEpubWriter writer = new StreamingEpubWriter(output.toFile(), "book-")) {
+            writer.finish(book, SyntheticBook.ISBN, epub);
+        }
+        return epub.length();
+    }
+
+    @Benchmark
+    public long writeHtmlAndPdf() throws Exception {
+        File html = output.resolve("book.html").toFile();
+        File pdf = output.resolve("book.pdf").toFile();
+        HtmlPdfWriter writer = new HtmlPdfWriter(context, SyntheticBook.ISBN, true, true);
+        try (ChunkedPdfRenderer renderer = new ChunkedPdfRenderer(context.getTempRoot(), "book-", book.getMedia(),
+                context.getMemoryBudget(), 2 * 1024 * 1024,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2))) {
+            writer.createHtml(html, renderer, book);
+            renderer.render(pdf);
+        }
+        return html.length() + pdf.length();
+    }
+}
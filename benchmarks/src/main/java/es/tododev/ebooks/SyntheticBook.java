@@ -0,0 +1,219 @@
+package es.tododev.ebooks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Generates a book with the given number and size of chapters and images, and serves it with the same API the books
+ * are downloaded from. The content is the same for the same parameters.
+ */
+public class SyntheticBook implements Closeable {
+
+    static final String ISBN = "0000000000000";
+    private static final int LISTING_PAGE_SIZE = 50;
+    private static final String[] WORDS = { "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing",
+            "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna" };
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, Resource> resources = new HashMap<>();
+    private final List<Map<String, Object>> entries = new ArrayList<>();
+    private final Random random = new Random(42);
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String baseUrl;
+
+    public SyntheticBook(int chapters, int chapterSize, int images, int imageSize, int rules) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        add("cover.xhtml", "html/cover.xhtml", "chapter", "application/xhtml+xml",
+                chapter("Cover", images > 0 ? "<img src=\"../images/image0.jpg\"/>" : ""));
+        add("style.css", "css/style.css", "stylesheet", "text/css",
+                ("body { font-family: serif; } p { text-align: justify; } h1 { font-size: 2em; }\n"
+                        + "img { max-width: 100%; } .note { color: #333; }").getBytes(StandardCharsets.UTF_8));
+        add("template.css", "css/template.css", "stylesheet", "text/css", template(rules));
+        for (int i = 0; i < images; i++) {
+            boolean jpeg = i % 2 == 0;
+            String fileName = "image" + i + (jpeg ? ".jpg" : ".png");
+            add(fileName, "images/" + fileName, "image", jpeg ? "image/jpeg" : "image/png",
+                    image(imageSize, jpeg ? "jpeg" : "png"));
+        }
+        for (int i = 0; i < chapters; i++) {
+            add("ch" + i + ".xhtml", "html/ch" + i + ".xhtml", "chapter", "application/xhtml+xml",
+                    chapter("Chapter " + i, body(i, chapters, chapterSize, images)));
+        }
+        add("content.opf", "content.opf", "other_asset", "application/oebps-package+xml",
+                "<package/>".getBytes(StandardCharsets.UTF_8));
+        executor = Executors.newFixedThreadPool(16);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            Resource resource;
+            if (path.startsWith("/api/v2/epubs/")) {
+                Map<String, Object> info = new LinkedHashMap<>();
+                info.put("title", "Synthetic Book");
+                info.put("files", baseUrl + "/files/?page=0");
+                resource = new Resource("application/json", mapper.writeValueAsBytes(info));
+            } else if (path.startsWith("/files/")) {
+                resource = listing(Integer.parseInt(exchange.getRequestURI().getQuery().substring("page=".length())));
+            } else {
+                resource = resources.get(path);
+            }
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Type", resource.mediaType);
+            exchange.sendResponseHeaders(200, resource.content.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(resource.content);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Properties to download the book from this server, without cache nor rate limit.
+     */
+    public Properties properties() {
+        Properties properties = new Properties();
+        properties.setProperty("base.url", baseUrl);
+        properties.setProperty("cache.enabled", "false");
+        properties.setProperty("download.host.rate", "0");
+        return properties;
+    }
+
+    private Resource listing(int page) throws IOException {
+        int from = page * LISTING_PAGE_SIZE;
+        int to = Math.min(entries.size(), from + LISTING_PAGE_SIZE);
+        Map<String, Object> listing = new LinkedHashMap<>();
+        listing.put("count", entries.size());
+        listing.put("next", to < entries.size() ? baseUrl + "/files/?page=" + (page + 1) : null);
+        listing.put("results", entries.subList(from, to));
+        return new Resource("application/json", mapper.writeValueAsBytes(listing));
+    }
+
+    private void add(String fileName, String fullPath, String kind, String mediaType, byte[] content) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("url", baseUrl + "/res/" + fullPath);
+        entry.put("filename", fileName);
+        entry.put("full_path", fullPath);
+        entry.put("kind", kind);
+        entry.put("media_type", mediaType);
+        entries.add(entry);
+        resources.put("/res/" + fullPath, new Resource(mediaType, content));
+    }
+
+    private byte[] chapter(String title, String body) {
+        return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<html xmlns=\"http://www.w3.org/1999/xhtml\" "
+                + "xmlns:epub=\"http://www.idpf.org/2007/ops\"><head><title>" + title + "</title>"
+                + "<link rel=\"stylesheet\" href=\"../css/style.css\"/>"
+                + "<link rel=\"stylesheet\" href=\"../css/template.css\"/></head><body>" + body + "</body></html>")
+                        .getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Publishers share one stylesheet across their books, so most of its rules are for elements this book lacks
+    private byte[] template(int rules) {
+        StringBuilder css = new StringBuilder("/* Publisher template */\n");
+        for (int i = 0; i < rules; i++) {
+            if (i % 50 == 0) {
+                css.append("p + p { text-indent: 1.5em; }\n@media print { .sidebar-").append(i)
+                        .append(" { display: none; } }\n");
+            }
+            css.append("div.box-").append(i).append(" > p.para-").append(i % 7).append(", aside.tip-").append(i)
+                    .append(" span { margin: 0 ").append(i % 5).append("em; color: #").append(100 + i % 900)
+                    .append("; }\n");
+        }
+        return css.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Paragraphs with ids, a figure every few paragraphs and links to the next chapter
+    private String body(int chapter, int chapters, int size, int images) {
+        StringBuilder body = new StringBuilder(size + 1024);
+        body.append("<section epub:type=\"chapter\" id=\"ch").append(chapter).append("\"><h1>Chapter ")
+                .append(chapter).append("</h1>");
+        int paragraph = 0;
+        while (body.length() < size) {
+            body.append("<p id=\"ch").append(chapter).append("-p").append(paragraph).append("\">");
+            for (int i = 0; i < 60; i++) {
+                body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            body.append("</p>");
+            if (images > 0 && paragraph % 8 == 0) {
+                int image = (chapter + paragraph) % images;
+                body.append("<figure><img src=\"../images/image").append(image)
+                        .append(image % 2 == 0 ? ".jpg" : ".png").append("\" width=\"800\" height=\"600\"/></figure>");
+            }
+            paragraph++;
+        }
+        int next = (chapter + 1) % chapters;
+        body.append("<p class=\"note\">See <a href=\"ch").append(next).append(".xhtml#ch").append(next)
+                .append("-p0\">next chapter</a></p></section>");
+        return body.toString();
+    }
+
+    // Gradients with noise, so they compress like photos
+    private byte[] image(int size, String format) {
+        int width = size;
+        int height = size * 3 / 4;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(random.nextInt(0xFFFFFF)));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                int rgb = image.getRGB(x, y);
+                int r = Math.min(255, ((rgb >> 16) & 0xFF) * x / width + noise);
+                int g = Math.min(255, ((rgb >> 8) & 0xFF) * y / height + noise);
+                int b = Math.min(255, (rgb & 0xFF) + noise) & 0xFF;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, format, output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return output.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static class Resource {
+        private final String mediaType;
+        private final byte[] content;
+
+        private Resource(String mediaType, byte[] content) {
+            this.mediaType = mediaType;
+            this.content = content;
+        }
+    }
+}
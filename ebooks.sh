@@ -0,0 +1,10 @@
+#!/bin/sh
+# Runs the converter from the packaged jar. After "ebooks.sh --training-run books.properties" the JVM maps the classes
+# from the archive of the training run, which starts faster. Set EBOOKS_ARCHIVE to use another archive.
+DIR=$(dirname "$0")
+JAR="$DIR/target/ebooks-1.0.jar"
+ARCHIVE="${EBOOKS_ARCHIVE:-$DIR/target/ebooks.jsa}"
+if [ -f "$ARCHIVE" ] && [ "$1" != "--training-run" ]; then
+    exec java -XX:SharedArchiveFile="$ARCHIVE" -Xshare:auto $JAVA_OPTS -cp "$JAR" es.tododev.ebooks.Main "$@"
+fi
+exec java $JAVA_OPTS -cp "$JAR" es.tododev.ebooks.Main "$@"
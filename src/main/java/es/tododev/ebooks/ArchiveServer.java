@@ -0,0 +1,123 @@
+package es.tododev.ebooks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves recorded book archives over HTTP, to test the download path without the real server. Set base.url to the
+ * printed URL. The recorded URLs are served by their path, and the hosts they pointed to are replaced by this server
+ * in the text bodies, so the listings link to it.
+ */
+public class ArchiveServer implements Closeable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final List<ZipFile> archives = new ArrayList<>();
+    private final Map<String, Body> bodies = new HashMap<>();
+    private final Set<String> origins = new LinkedHashSet<>();
+    private final String url;
+
+    public ArchiveServer(int port, int threads, List<String> files) throws IOException {
+        for (String file : files) {
+            ZipFile zip = new ZipFile(file);
+            archives.add(zip);
+            Properties index = BookArchive.readIndex(zip);
+            for (String recorded : index.stringPropertyNames()) {
+                URI uri = URI.create(recorded);
+                origins.add(uri.getScheme() + "://" + uri.getRawAuthority());
+                bodies.put(uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()),
+                        new Body(zip, zip.getEntry(index.getProperty(recorded))));
+            }
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        url = "http://localhost:" + server.getAddress().getPort();
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            URI uri = exchange.getRequestURI();
+            Body body = bodies.get(uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()));
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            try (InputStream input = body.zip.getInputStream(body.entry);
+                    OutputStream out = exchange.getResponseBody()) {
+                if (body.entry.getName().startsWith(BookArchive.TEXT_PREFIX)) {
+                    String text = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+                    for (String origin : origins) {
+                        text = text.replace(origin, url);
+                    }
+                    byte[] content = text.getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(200, content.length);
+                    out.write(content);
+                } else {
+                    exchange.sendResponseHeaders(200, body.entry.getSize());
+                    input.transferTo(out);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(0);
+        executor.shutdownNow();
+        for (ZipFile zip : archives) {
+            zip.close();
+        }
+    }
+
+    private static class Body {
+        private final ZipFile zip;
+        private final ZipEntry entry;
+
+        private Body(ZipFile zip, ZipEntry entry) {
+            this.zip = zip;
+            this.entry = entry;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Specify the port and the archives as arguments");
+            return;
+        }
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            files.add(args[i]);
+        }
+        ArchiveServer server = new ArchiveServer(Integer.parseInt(args[0]), 16, files);
+        System.out.println("Serving " + server.bodies.size() + " bodies from " + files + ", use base.url="
+                + server.getUrl());
+    }
+}
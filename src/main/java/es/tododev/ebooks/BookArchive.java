@@ -0,0 +1,195 @@
+package es.tododev.ebooks;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Every body downloaded for one book: the book information, the pages of the listing and the resources. In record
+ * mode the bodies are read from the network and copied in the archive, in replay mode they are read from the archive
+ * without any request. The archive is a zip file with one entry per body and an index from URL to entry. Text bodies
+ * are compressed, binary ones are stored as they are.
+ *
+ * <pre>
+ * index.properties   URL=entry
+ * t/12               body of a text resource
+ * b/13               body of a binary resource
+ * </pre>
+ */
+public class BookArchive implements ResourceSource, Closeable {
+
+    private static final String MODE_KEY = "archive.mode";
+    private static final String DIR_KEY = "archive.dir";
+    private static final String RECORD = "record";
+    private static final String REPLAY = "replay";
+    static final String INDEX = "index.properties";
+    static final String TEXT_PREFIX = "t/";
+    private final Path file;
+    private final Properties index = new Properties();
+    private final ResourceSource delegate;
+    private final ZipFile zip;
+    private final Path temp;
+    private final ZipOutputStream output;
+    private boolean finished;
+
+    private BookArchive(Path file, ResourceSource delegate) throws IOException {
+        this.file = file;
+        this.delegate = delegate;
+        if (delegate == null) {
+            if (!Files.exists(file)) {
+                throw new FileNotFoundException("There is no archive " + file.toAbsolutePath());
+            }
+            this.zip = new ZipFile(file.toFile());
+            this.index.putAll(readIndex(zip));
+            this.temp = null;
+            this.output = null;
+        } else {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            this.zip = null;
+            this.temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            this.output = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024));
+        }
+    }
+
+    /**
+     * Archive of the book for the configured archive.mode, or null when the book is downloaded without archive.
+     */
+    public static BookArchive open(Context context, String isbn) throws IOException {
+        String mode = context.getProperty(MODE_KEY, "off");
+        if (RECORD.equalsIgnoreCase(mode)) {
+            return new BookArchive(file(context, isbn), context.getTransport());
+        } else if (REPLAY.equalsIgnoreCase(mode)) {
+            return new BookArchive(file(context, isbn), null);
+        }
+        return null;
+    }
+
+    /**
+     * True when the downloads are being saved, so the book has to be downloaded completely.
+     */
+    public boolean isRecording() {
+        return output != null;
+    }
+
+    public static boolean isReplay(Context context) {
+        return REPLAY.equalsIgnoreCase(context.getProperty(MODE_KEY, "off"));
+    }
+
+    static BookArchive record(Path file, ResourceSource delegate) throws IOException {
+        return new BookArchive(file, delegate);
+    }
+
+    static BookArchive replay(Path file) throws IOException {
+        return new BookArchive(file, null);
+    }
+
+    private static Path file(Context context, String isbn) {
+        return Paths.get(context.getProperty(DIR_KEY, "archive"), isbn + ".zip");
+    }
+
+    static Properties readIndex(ZipFile zip) throws IOException {
+        ZipEntry entry = zip.getEntry(INDEX);
+        if (entry == null) {
+            throw new IOException(zip.getName() + " is not a book archive");
+        }
+        Properties index = new Properties();
+        try (InputStream input = zip.getInputStream(entry)) {
+            index.load(input);
+        }
+        return index;
+    }
+
+    @Override
+    public InputStream open(String url, boolean text) throws IOException, InterruptedException {
+        if (delegate == null) {
+            String name = index.getProperty(url);
+            if (name == null) {
+                throw new FileNotFoundException(url + " is not in the archive " + file.toAbsolutePath());
+            }
+            return zip.getInputStream(zip.getEntry(name));
+        }
+        // The body is copied to a temporary file first, so the downloads are not serialized by the archive
+        Path body = Files.createTempFile(temp.getParent(), file.getFileName().toString(), ".body");
+        try {
+            CRC32 crc = new CRC32();
+            try (InputStream input = delegate.open(url, text);
+                    OutputStream out = new CheckedOutputStream(Files.newOutputStream(body), crc)) {
+                input.transferTo(out);
+            }
+            add(url, text, body, crc.getValue());
+            return new FilterInputStream(Files.newInputStream(body)) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    Files.deleteIfExists(body);
+                }
+            };
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            Files.deleteIfExists(body);
+            throw e;
+        }
+    }
+
+    private synchronized void add(String url, boolean text, Path body, long crc) throws IOException {
+        if (index.containsKey(url)) {
+            return;
+        }
+        String name = (text ? TEXT_PREFIX : "b/") + index.size();
+        ZipEntry entry = new ZipEntry(name);
+        if (!text) {
+            long size = Files.size(body);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc);
+        }
+        output.putNextEntry(entry);
+        Files.copy(body, output);
+        output.closeEntry();
+        index.setProperty(url, name);
+    }
+
+    /**
+     * Writes the index and moves the recorded archive to its final name. Until then, a previous archive of the book
+     * is kept.
+     */
+    public synchronized void finish() throws IOException {
+        if (delegate == null || finished) {
+            return;
+        }
+        output.putNextEntry(new ZipEntry(INDEX));
+        index.store(output, null);
+        output.closeEntry();
+        output.close();
+        finished = true;
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Recorded " + index.size() + " bodies in " + file.toAbsolutePath());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (zip != null) {
+            zip.close();
+        } else if (!finished) {
+            try {
+                output.close();
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
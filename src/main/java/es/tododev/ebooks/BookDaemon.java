@@ -0,0 +1,306 @@
+package es.tododev.ebooks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Keeps the JVM, the HTTP transport and the caches alive between books, so only the first book pays the class loading
+ * and the cold JIT. Books are submitted in two ways:
+ * <ul>
+ * <li>HTTP on daemon.host:daemon.port. POST /jobs with {"isbns": ["..."], "formats": "epub,pdf"} queues books, GET
+ * /jobs and GET /jobs/{id} return their status and DELETE /jobs/{id} cancels one.</li>
+ * <li>Files dropped in daemon.spool.dir, with one ISBN per line optionally followed by the formats. They are moved to
+ * the submitted folder once queued. Files starting with a dot or ending with .tmp are ignored, so they can be written
+ * with another name and renamed when complete.</li>
+ * </ul>
+ */
+public class BookDaemon implements Closeable {
+
+    private static final String HOST_KEY = "daemon.host";
+    private static final String PORT_KEY = "daemon.port";
+    private static final String SPOOL_DIR_KEY = "daemon.spool.dir";
+    private static final String JOBS_KEPT_KEY = "daemon.jobs.kept";
+    private static final String SUBMITTED_DIR = "submitted";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private final Set<String> formats;
+    private final BiFunction<String, Set<String>, Processor> processors;
+    private final BookScheduler scheduler;
+    private final ProgressReporter progress;
+    private final int jobsKept;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Path spool;
+    private final WatchService watcher;
+    private final Thread spoolThread;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    public BookDaemon(Context context, Set<String> formats, BiFunction<String, Set<String>, Processor> processors)
+            throws IOException {
+        this.formats = formats;
+        this.processors = processors;
+        this.jobsKept = context.getInt(JOBS_KEPT_KEY, 1000);
+        this.scheduler = new BookScheduler(context, isbn -> processors.apply(isbn, formats));
+        this.progress = new ProgressReporter(context, scheduler);
+        int port = context.getInt(PORT_KEY, 8090);
+        if (port >= 0) {
+            server = HttpServer.create(new InetSocketAddress(context.getProperty(HOST_KEY, "localhost"), port), 0);
+            executor = Executors.newFixedThreadPool(2);
+            server.setExecutor(executor);
+            server.createContext("/jobs", this::handle);
+            server.start();
+            System.out.println("Listening on http://" + context.getProperty(HOST_KEY, "localhost") + ":"
+                    + server.getAddress().getPort() + "/jobs");
+        } else {
+            server = null;
+            executor = null;
+        }
+        String spoolDir = context.getProperty(SPOOL_DIR_KEY, null);
+        if (spoolDir != null) {
+            spool = Paths.get(spoolDir);
+            Files.createDirectories(spool.resolve(SUBMITTED_DIR));
+            watcher = FileSystems.getDefault().newWatchService();
+            spool.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            spoolThread = new Thread(this::watchSpool, "spool");
+            spoolThread.setDaemon(true);
+            spoolThread.start();
+            System.out.println("Watching " + spool.toAbsolutePath());
+        } else {
+            spool = null;
+            watcher = null;
+            spoolThread = null;
+        }
+    }
+
+    public int getPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    public BookScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Blocks until {@link #stop()} is called.
+     */
+    public void await() throws InterruptedException {
+        stopped.await();
+    }
+
+    public void stop() {
+        stopped.countDown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if ("/jobs".equals(path) || "/jobs/".equals(path)) {
+                if ("POST".equals(method)) {
+                    post(exchange);
+                } else if ("GET".equals(method)) {
+                    List<Object> jobs = new ArrayList<>();
+                    for (BookJob job : scheduler.getJobs()) {
+                        jobs.add(toMap(job));
+                    }
+                    send(exchange, 200, jobs);
+                } else {
+                    send(exchange, 405, error("Method not allowed"));
+                }
+                return;
+            }
+            BookJob job = null;
+            try {
+                job = scheduler.getJob(Long.parseLong(path.substring("/jobs/".length())));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                // Not found
+            }
+            if (job == null) {
+                send(exchange, 404, error("No job " + path));
+            } else if ("GET".equals(method)) {
+                send(exchange, 200, toMap(job));
+            } else if ("DELETE".equals(method)) {
+                boolean cancelled = scheduler.cancel(job);
+                send(exchange, cancelled ? 200 : 409, toMap(job));
+            } else {
+                send(exchange, 405, error("Method not allowed"));
+            }
+        } catch (RuntimeException e) {
+            send(exchange, 500, error(e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void post(HttpExchange exchange) throws IOException {
+        List<String> isbns = new ArrayList<>();
+        Set<String> jobFormats;
+        try (InputStream input = exchange.getRequestBody()) {
+            JsonNode request = MAPPER.readTree(input);
+            if (request == null || !request.isObject()) {
+                throw new IllegalArgumentException("Expected a JSON object");
+            }
+            if (request.hasNonNull("isbn")) {
+                isbns.add(request.get("isbn").asText().trim());
+            }
+            for (JsonNode isbn : request.path("isbns")) {
+                isbns.add(isbn.asText().trim());
+            }
+            isbns.removeIf(String::isEmpty);
+            if (isbns.isEmpty()) {
+                throw new IllegalArgumentException("Specify isbn or isbns");
+            }
+            jobFormats = request.hasNonNull("formats") ? BookProcessor.formats(request.get("formats").asText())
+                    : formats;
+        } catch (IOException | IllegalArgumentException e) {
+            send(exchange, 400, error(e.getMessage()));
+            return;
+        }
+        List<Object> jobs = new ArrayList<>();
+        for (String isbn : isbns) {
+            BookJob job = scheduler.trySubmit(isbn, key -> processors.apply(key, jobFormats));
+            if (job == null) {
+                // The books that fit are queued, the client retries the rest
+                Map<String, Object> response = error("The queue is full");
+                response.put("jobs", jobs);
+                exchange.getResponseHeaders().set("Retry-After", "10");
+                send(exchange, 503, response);
+                return;
+            }
+            jobs.add(toMap(job));
+        }
+        scheduler.forgetFinished(jobsKept);
+        send(exchange, 202, jobs);
+    }
+
+    private Map<String, Object> toMap(BookJob job) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", job.getId());
+        map.put("isbn", job.getIsbn());
+        map.put("status", job.getStatus());
+        map.put("durationMillis", job.getDurationMillis());
+        map.put("error", job.getError());
+        map.putAll(job.getMetrics());
+        return map;
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("error", message);
+        return map;
+    }
+
+    private static void send(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] content = MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content);
+        }
+    }
+
+    private void watchSpool() {
+        try {
+            // Files dropped while the daemon was not running
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(spool)) {
+                for (Path file : files) {
+                    submitFile(file);
+                }
+            }
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path) {
+                        submitFile(spool.resolve((Path) event.context()));
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        } catch (IOException e) {
+            System.out.println("WARNING: Cannot read the spool " + spool + ": " + e);
+        }
+    }
+
+    private void submitFile(Path file) throws InterruptedException {
+        String name = file.getFileName().toString();
+        if (name.startsWith(".") || name.endsWith(".tmp") || !Files.isRegularFile(file)) {
+            return;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            Files.move(file, spool.resolve(SUBMITTED_DIR).resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // Already moved by a previous event of the same file
+            return;
+        }
+        List<Long> ids = new ArrayList<>();
+        for (String line : lines) {
+            String[] fields = line.trim().split("\\s+", 2);
+            if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+                continue;
+            }
+            try {
+                Set<String> jobFormats = fields.length > 1 ? BookProcessor.formats(fields[1]) : formats;
+                // Waits for a free slot, the spool is the backlog
+                ids.add(scheduler.submit(fields[0], key -> processors.apply(key, jobFormats)).getId());
+            } catch (IllegalArgumentException e) {
+                System.out.println("WARNING: Ignoring line '" + line + "' of " + name + ": " + e.getMessage());
+            }
+        }
+        scheduler.forgetFinished(jobsKept);
+        System.out.println("Queued jobs " + ids + " from " + name);
+    }
+
+    /**
+     * Stops taking books and cancels the ones still queued or running.
+     */
+    @Override
+    public void close() throws IOException {
+        stop();
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        if (watcher != null) {
+            watcher.close();
+            spoolThread.interrupt();
+        }
+        progress.close();
+        for (BookJob job : scheduler.getJobs()) {
+            scheduler.cancel(job);
+        }
+        scheduler.close();
+    }
+}
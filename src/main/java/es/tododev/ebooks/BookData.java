@@ -1,33 +1,58 @@
 package es.tododev.ebooks;
 
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.Invocation.Builder;
-import javax.ws.rs.core.GenericType;
-import javax.ws.rs.core.Response;
+import javax.imageio.ImageIO;
 
-public class BookData {
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import es.tododev.ebooks.FileListing.FileEntry;
+
+public class BookData implements Closeable {
 
     private static final List<String> BANNED_CHARACTERS_FILE = Arrays.asList("\\:", "\\*", "\\?", "<", ">", "\\|");
     static final Pattern PATTERN = Pattern.compile("src=\"(.*?)\"");
-    private final Client httpClient;
+    private static final ResourceItem END_OF_LISTING = new ResourceItem(null, null, "", "", null, null);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static byte[] placeholderImage;
+    private final ResourceSource source;
+    private final BookArchive archive;
     private final String isbn;
     private final String baseUrl;
-    private final Map<String, String> httpHeaders;
+    private final ResourceStore store;
+    private final MemoryBudget budget;
+    private final int concurrency;
+    private final ImageTranscoder transcoder;
+    private final Metrics.BookMetrics metrics;
+    private final RetryPolicy retries;
     private final Set<ResourceItem> resources = new LinkedHashSet<>();
     private final Map<String, ResourceItem> media = new HashMap<>();
     private String titleOriginal;
@@ -36,77 +61,193 @@ public class BookData {
     private ResourceItem coverImage;
     private ResourceItem opfResource;
     private ResourceItem ncxResource;
-    private ResourceItem cssResource;
+    // In the order of the listing, that is the order the chapters link them
+    private final List<ResourceItem> stylesheets = new ArrayList<>();
+    private volatile ResourceListener listener;
+    // Entries of the listing, to know whether it changed
+    private final List<String> listed = new ArrayList<>();
+    private String listingChecksum;
 
-    public BookData(Client httpClient, String baseUrl, String isbn, Map<String, String> httpHeaders) {
-        this.baseUrl = baseUrl;
+    public BookData(Context context, String isbn) throws IOException {
+        this.baseUrl = context.getBaseUrl();
         this.isbn = isbn;
-        this.httpHeaders = httpHeaders;
-        this.httpClient = httpClient;
+        this.archive = BookArchive.open(context, isbn);
+        this.source = archive != null ? archive : context.getTransport();
+        this.store = context.createResourceStore(isbn);
+        this.budget = context.getMemoryBudget();
+        this.concurrency = context.getDownloadConcurrency();
+        this.transcoder = new ImageTranscoder(context);
+        this.metrics = context.getMetrics().book(isbn);
+        this.retries = new RetryPolicy(context);
+    }
+
+    /**
+     * The listener is notified from the download threads as soon as a resource that is not a chapter is downloaded.
+     * Chapters are notified later, their media links are rewritten once the whole book is listed.
+     */
+    public void setListener(ResourceListener listener) {
+        this.listener = listener;
     }
 
     public void fetch() throws Exception {
-        download();
-        postProcessing();
+        try (Metrics.Timer timer = metrics.phase(Metrics.FETCH)) {
+            download();
+        }
+        if (archive != null) {
+            archive.finish();
+        }
+        try (Metrics.Timer timer = metrics.phase(Metrics.REWRITE)) {
+            postProcessing();
+        }
     }
 
-    private void postProcessing() throws UnsupportedEncodingException {
-        for (ResourceItem item : resources) {
-            if ("chapter".equals(item.kind)) {
-                fixMediaLinks(item, false);
+    @Override
+    public void close() throws IOException {
+        try {
+            store.close();
+        } finally {
+            if (archive != null) {
+                archive.close();
             }
         }
+    }
+
+    private void postProcessing() throws IOException, InterruptedException {
         if (coverPage == null) {
             // FIXME Check NCX file
             coverPage = resources.iterator().next();
             resources.remove(coverPage);
         }
-        fixMediaLinks(coverPage, true);
+        MediaLinkRewriter rewriter = new MediaLinkRewriter(media);
+        // Own threads, as they wait for the memory budget and must not block the common pool of other books
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> rewrites = new ArrayList<>(resources.size());
+        try {
+            for (ResourceItem item : resources) {
+                rewrites.add(completion.submit(() -> {
+                    fixMediaLinks(rewriter, item, false);
+                    return null;
+                }));
+            }
+            await(completion, rewrites);
+        } finally {
+            executor.shutdownNow();
+        }
+        fixMediaLinks(rewriter, coverPage, true);
     }
 
-    private void fixMediaLinks(ResourceItem item, boolean cover) throws UnsupportedEncodingException {
+    private void fixMediaLinks(MediaLinkRewriter rewriter, ResourceItem item, boolean cover) throws IOException {
         if ("chapter".equals(item.kind)) {
-            String content = new String(item.content, "UTF-8");
-            Map<String, String> replacements = new HashMap<>();
-            Matcher matcher = PATTERN.matcher(content);
-            while (matcher.find()) {
-                String fileNameWithPaths = matcher.group(1);
-                String[] file = fileNameWithPaths.split("/");
-                String fileName = file[file.length - 1];
-                ResourceItem image = media.get(fileName);
-                if (image != null) {
-                    String relative = ResourceItem.relativize(item, image);
-                    String newImage = relative + image.fileName;
-                    replacements.put(fileNameWithPaths, newImage);
-                    if (cover && coverImage == null) {
-                        System.out.println("Cover image found: " + newImage);
-                        coverImage = image;
-                    }
-                } else {
-                    System.out.println("Warning: No image found for " + fileName + " in page " + item.fullPath);
-                }
+            ByteArrayOutputStream content;
+            List<ResourceItem> images;
+            // The permit is released before storing the result, the store waits for its own
+            try (MemoryBudget.Permit permit = budget.acquireInterruptibly(item.content.size() * 2 + 1024);
+                    InputStream input = item.content.openStream()) {
+                content = new ByteArrayOutputStream((int) item.content.size() + 1024);
+                images = rewriter.rewrite(item, input, content);
             }
-            for (Entry<String, String> entry : replacements.entrySet()) {
-                content = content.replaceAll(entry.getKey(), entry.getValue());
+            if (cover && coverImage == null && !images.isEmpty()) {
+                coverImage = images.get(0);
+                System.out.println("Cover image found: " + coverImage.fullPath);
             }
-            item.content = content.getBytes("UTF-8");
+            StoredContent previous = item.content;
+            item.content = store.store(content.toByteArray());
+            previous.release();
         }
     }
 
-    private void download() throws IOException, InterruptedException {
+    /**
+     * Reads the title and the listing of the book without downloading any resource, to know whether the book changed
+     * since its outputs were generated. It is null while recording an archive, as the whole book has to be recorded.
+     */
+    public String probeListing() throws IOException, InterruptedException {
+        if (archive != null && archive.isRecording()) {
+            return null;
+        }
+        String filesUrl = readInfo();
+        List<String> lines = new ArrayList<>();
+        do {
+            String pageUrl = filesUrl;
+            List<String> page = new ArrayList<>();
+            FileListing listing = retries.call(() -> {
+                page.clear();
+                try (InputStream input = source.open(pageUrl, true)) {
+                    return FileListing.read(input, entry -> page.add(listingLine(entry)));
+                }
+            }, metrics::retry);
+            metrics.request();
+            lines.addAll(page);
+            filesUrl = listing.getNext();
+        } while (filesUrl != null);
+        return listingChecksum(lines);
+    }
+
+    /**
+     * Checksum of the title and the entries of the listing, available once the book is fetched. It is null when some
+     * resource could not be downloaded.
+     */
+    public String getListingChecksum() {
+        return listingChecksum;
+    }
+
+    private static String listingLine(FileEntry entry) {
+        return entry.fullPath + " " + entry.kind + " " + entry.mediaType + " " + entry.url;
+    }
+
+    private String listingChecksum(List<String> lines) {
+        List<String> sorted = new ArrayList<>(lines);
+        sorted.sort(null);
+        MessageDigest digest = HttpCache.sha256();
+        digest.update(titleOriginal.getBytes(StandardCharsets.UTF_8));
+        for (String line : sorted) {
+            digest.update((byte) '\n');
+            digest.update(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return HttpCache.hex(digest.digest());
+    }
+
+    // Title and name of the book, returns the URL of the listing
+    private String readInfo() throws IOException, InterruptedException {
         String infoPath = baseUrl + "/api/v2/epubs/urn:orm:book:" + isbn;
-        Builder builder = httpClient.target(infoPath).request();
-        addHeaders(builder);
-        Map<String, Object> response = builder.get(new GenericType<Map<String, Object>>() {
-        });
+        Map<String, Object> response = retries.call(() -> info(source, infoPath), metrics::retry);
+        metrics.request();
         titleOriginal = response.get("title").toString();
         String title = titleOriginal.toLowerCase().replaceAll(" ", "-");
         bookName = safeFileName(title);
-        String filesUrl = response.get("files").toString();
-        do {
-            System.out.println("Searching book pages in " + filesUrl);
-            filesUrl = downloadPages(filesUrl);
-        } while (filesUrl != null);
+        return response.get("files").toString();
+    }
+
+    private void download() throws IOException, InterruptedException {
+        String filesUrl = readInfo();
+        BlockingQueue<ResourceItem> queue = new ArrayBlockingQueue<>(concurrency * 4);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency + 1);
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> stages = new ArrayList<>(concurrency + 1);
+        try {
+            stages.add(completion.submit(() -> {
+                listPages(filesUrl, queue);
+                return null;
+            }));
+            for (int i = 0; i < concurrency; i++) {
+                stages.add(completion.submit(() -> {
+                    ResourceItem resource;
+                    while ((resource = queue.take()) != END_OF_LISTING) {
+                        downloadContent(resource);
+                    }
+                    return null;
+                }));
+            }
+            await(completion, stages);
+        } finally {
+            executor.shutdownNow();
+        }
+        // A placeholder is downloaded again only when the book is fetched, so it cannot be skipped by its listing
+        boolean placeholders = false;
+        for (ResourceItem item : getAllResources()) {
+            placeholders |= item.placeholder;
+        }
+        listingChecksum = placeholders ? null : listingChecksum(listed);
     }
 
     private String safeFileName(String original) {
@@ -122,48 +263,195 @@ public class BookData {
         return original;
     }
 
-    private void addHeaders(Builder builder) {
-        for (Entry<String, String> entry : httpHeaders.entrySet()) {
-            builder.header(entry.getKey(), entry.getValue());
+    /**
+     * Number of files reported by the first page of the listing, or -1 if it is unknown. Failed requests are retried
+     * like the downloads of the book.
+     */
+    public static long probeFileCount(Context context, String isbn) throws IOException, InterruptedException {
+        String infoPath = context.getBaseUrl() + "/api/v2/epubs/urn:orm:book:" + isbn;
+        RetryPolicy retries = new RetryPolicy(context);
+        if (BookArchive.isReplay(context)) {
+            try (BookArchive archive = BookArchive.open(context, isbn)) {
+                return probeFileCount(archive, infoPath, retries);
+            }
         }
+        return probeFileCount(context.getTransport(), infoPath, retries);
     }
 
-    private String downloadPages(String filesUrl) throws IOException, InterruptedException {
-        Builder builder = httpClient.target(filesUrl).request();
-        addHeaders(builder);
-        Map<String, Object> response = builder.get().readEntity(new GenericType<Map<String, Object>>() {
+    private static long probeFileCount(ResourceSource source, String infoPath, RetryPolicy retries)
+            throws IOException, InterruptedException {
+        Object filesUrl = retries.call(() -> info(source, infoPath), () -> {
+        }).get("files");
+        if (filesUrl == null) {
+            return -1;
+        }
+        return retries.call(() -> {
+            try (InputStream input = source.open(filesUrl.toString(), true)) {
+                return FileListing.read(input, entry -> {
+                }).getCount();
+            }
+        }, () -> {
         });
-        @SuppressWarnings("unchecked")
-        List<Map<String, Object>> pages = (List<Map<String, Object>>) response.get("results");
-        for (Map<String, Object> page : pages) {
-            String pageUrl = (String) page.get("url");
-            String mediaType = (String) page.get("media_type");
-            String fullPath = (String) page.get("full_path");
-            String fileName = (String) page.get("filename");
-            // stylesheet, chapter, image, other_asset
-            String kind = (String) page.get("kind");
-            System.out.println("Downloading " + mediaType + " " + pageUrl);
-            builder = httpClient.target(pageUrl).request();
-            addHeaders(builder);
-            Response content = builder.get();
-            InputStream input = content.readEntity(InputStream.class);
-            byte[] in = input.readAllBytes();
-            ResourceItem resource = new ResourceItem(pageUrl, mediaType, fullPath, fileName, kind, in);
-            if ("image".equals(kind) || "video".equals(kind)) {
-                media.put(fileName, resource);
-            } else if ("stylesheet".equals(kind)) {
-                cssResource = resource;
-            } else if (fileName.toLowerCase().endsWith(".opf")) {
-                opfResource = resource;
-            } else if (fileName.toLowerCase().endsWith(".ncx")) {
-                ncxResource = resource;
-            } else if (fileName.toLowerCase().contains("cover")) {
-                coverPage = resource;
-            } else {
-                resources.add(resource);
+    }
+
+    private static Map<String, Object> info(ResourceSource source, String infoPath)
+            throws IOException, InterruptedException {
+        try (InputStream input = source.open(infoPath, true)) {
+            return MAPPER.readValue(input, new TypeReference<Map<String, Object>>() {
+            });
+        }
+    }
+
+    private void listPages(String filesUrl, BlockingQueue<ResourceItem> queue) throws IOException, InterruptedException {
+        do {
+            System.out.println("Searching book pages in " + filesUrl);
+            String pageUrl = filesUrl;
+            // A page that fails while it is read is requested again, skipping the entries that were already queued
+            int[] queued = { 0 };
+            FileListing listing = retries.call(() -> {
+                int skip = queued[0];
+                int[] read = { 0 };
+                try (InputStream input = source.open(pageUrl, true)) {
+                    return FileListing.read(input, entry -> {
+                        if (read[0]++ >= skip) {
+                            queue.put(register(entry));
+                            queued[0]++;
+                        }
+                    });
+                }
+            }, metrics::retry);
+            metrics.request();
+            if (metrics.getExpected() < 0) {
+                metrics.expect(listing.getCount());
+            }
+            filesUrl = listing.getNext();
+        } while (filesUrl != null);
+        for (int i = 0; i < concurrency; i++) {
+            queue.put(END_OF_LISTING);
+        }
+    }
+
+    // The item is registered before its content arrives to keep the order of the listing
+    private ResourceItem register(FileEntry entry) {
+        listed.add(listingLine(entry));
+        String fileName = entry.fileName;
+        String kind = entry.kind;
+        ResourceItem resource = new ResourceItem(entry.url, entry.mediaType, entry.fullPath, fileName, kind, null);
+        if ("image".equals(kind) || "video".equals(kind)) {
+            media.put(fileName, resource);
+        } else if ("stylesheet".equals(kind)) {
+            stylesheets.add(resource);
+        } else if (fileName.toLowerCase().endsWith(".opf")) {
+            opfResource = resource;
+        } else if (fileName.toLowerCase().endsWith(".ncx")) {
+            ncxResource = resource;
+        } else if (fileName.toLowerCase().contains("cover")) {
+            coverPage = resource;
+        } else {
+            resources.add(resource);
+        }
+        return resource;
+    }
+
+    private void downloadContent(ResourceItem resource) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            resource.content = retries.call(() -> {
+                try (InputStream input = source.open(resource.pageUrl, HttpTransport.isText(resource.mediaType))) {
+                    return store.store(input);
+                }
+            }, metrics::retry);
+            metrics.downloaded(resource.pageUrl, resource.kind, resource.content.size(), System.nanoTime() - start);
+        } catch (IOException e) {
+            // Chapters are the book, but it is still readable without some image or font
+            if ("chapter".equals(resource.kind)) {
+                throw new IOException("Cannot download " + resource.fullPath + ": " + e.getMessage(), e);
+            }
+            System.out.println("WARNING: " + resource.fullPath + " is replaced by a placeholder: " + e.getMessage());
+            placeholder(resource);
+            metrics.placeholder();
+        }
+        if ("image".equals(resource.kind) && !resource.placeholder) {
+            if (transcoder.transcode(resource, store)) {
+                metrics.mediaTypeFixed();
             }
         }
-        return (String) response.get("next");
+        ResourceListener listener = this.listener;
+        if (listener != null && !"chapter".equals(resource.kind)) {
+            listener.downloaded(resource);
+        }
+    }
+
+    private void placeholder(ResourceItem resource) throws IOException {
+        if ("image".equals(resource.kind)) {
+            resource.mediaType = "image/png";
+            resource.content = store.store(placeholderImage());
+        } else {
+            resource.content = store.store(new byte[0]);
+        }
+        resource.placeholder = true;
+    }
+
+    // Grey box crossed out, it does not depend on the fonts of the system
+    private static synchronized byte[] placeholderImage() throws IOException {
+        if (placeholderImage == null) {
+            BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = image.createGraphics();
+            graphics.setColor(Color.LIGHT_GRAY);
+            graphics.fillRect(0, 0, 400, 300);
+            graphics.setColor(Color.GRAY);
+            graphics.setStroke(new BasicStroke(4));
+            graphics.drawRect(2, 2, 396, 296);
+            graphics.drawLine(0, 0, 400, 300);
+            graphics.drawLine(0, 300, 400, 0);
+            graphics.dispose();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", output);
+            placeholderImage = output.toByteArray();
+        }
+        return placeholderImage;
+    }
+
+    private void await(CompletionService<Void> completion, List<Future<Void>> stages)
+            throws IOException, InterruptedException {
+        try {
+            for (int i = 0; i < stages.size(); i++) {
+                completion.take().get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            for (Future<Void> stage : stages) {
+                stage.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Every downloaded resource of the book, whatever its kind.
+     */
+    public List<ResourceItem> getAllResources() {
+        List<ResourceItem> all = new ArrayList<>(resources.size() + media.size() + stylesheets.size() + 3);
+        if (coverPage != null) {
+            all.add(coverPage);
+        }
+        all.addAll(resources);
+        all.addAll(media.values());
+        all.addAll(stylesheets);
+        for (ResourceItem item : Arrays.asList(opfResource, ncxResource)) {
+            if (item != null) {
+                all.add(item);
+            }
+        }
+        return all;
     }
 
     public Set<ResourceItem> getResources() {
@@ -198,22 +486,29 @@ public class BookData {
         return ncxResource;
     }
 
-    public ResourceItem getCssResource() {
-        return cssResource;
+    public List<ResourceItem> getStylesheets() {
+        return stylesheets;
     }
 
 
+    public interface ResourceListener {
+        void downloaded(ResourceItem item) throws IOException;
+    }
+
     static class ResourceItem {
         final String pageUrl;
-        final String mediaType;
+        // Corrected from the content of the images
+        volatile String mediaType;
         final String fullPath;
         final String fileName;
         final String kind;
         final String folder;
-        byte[] content;
+        StoredContent content;
+        // The resource could not be downloaded and the content is a placeholder
+        volatile boolean placeholder;
 
         public ResourceItem(String pageUrl, String mediaType, String fullPath, String fileName, String kind,
-                byte[] content) {
+                StoredContent content) {
             this.pageUrl = pageUrl;
             this.mediaType = mediaType;
             this.fullPath = fullPath;
@@ -0,0 +1,109 @@
+package es.tododev.ebooks;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import es.tododev.ebooks.Metrics.BookMetrics;
+
+public class BookJob {
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED, TIMEOUT, CANCELLED
+    }
+
+    private final long id;
+    private final String isbn;
+    private volatile Status status = Status.QUEUED;
+    private volatile long startMillis;
+    private volatile long endMillis;
+    private volatile String error;
+    private volatile BookMetrics metrics;
+    // The metrics when the job finished, a later job of the same book has its own
+    private volatile Map<String, Object> finalMetrics;
+    volatile Future<?> future;
+
+    BookJob(long id, String isbn) {
+        this.id = id;
+        this.isbn = isbn;
+    }
+
+    synchronized boolean start() {
+        if (status != Status.QUEUED) {
+            return false;
+        }
+        status = Status.RUNNING;
+        startMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    synchronized boolean finish(Status status, String error) {
+        if (isFinished()) {
+            return false;
+        }
+        this.status = status;
+        this.error = error;
+        this.endMillis = System.currentTimeMillis();
+        if (metrics != null) {
+            finalMetrics = metrics.toMap();
+        }
+        return true;
+    }
+
+    synchronized void setMetrics(BookMetrics metrics) {
+        this.metrics = metrics;
+        if (isFinished()) {
+            finalMetrics = metrics.toMap();
+        }
+    }
+
+    /**
+     * Metrics of this job, as they were when it finished. It is empty until the job starts.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> snapshot = finalMetrics;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        BookMetrics current = metrics;
+        return current == null ? Collections.emptyMap() : current.toMap();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getIsbn() {
+        return isbn;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isFinished() {
+        Status current = status;
+        return current != Status.QUEUED && current != Status.RUNNING;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getDurationMillis() {
+        if (startMillis == 0) {
+            return 0;
+        }
+        return (endMillis == 0 ? System.currentTimeMillis() : endMillis) - startMillis;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-16s %-10s %8.1fs %s", isbn, status, getDurationMillis() / 1000.0,
+                error == null ? "" : error);
+    }
+}
@@ -0,0 +1,169 @@
+package es.tododev.ebooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Remembers the inputs an artifact of a book was generated from, so it is only generated again when the processor,
+ * the settings that change the output or any of the resources changed.
+ */
+public class BookManifest {
+
+    private static final String MANIFEST_FOLDER = "books/.manifest/";
+    private static final String VERSION = "#version";
+    private static final String SETTINGS = "#settings";
+    private static final String OUTPUT = "#output";
+    private static final String RESOURCE_PREFIX = "resource.";
+    static final String TITLE = "#title";
+    // Checksum of the listing of the book, it is not a resource
+    static final String LISTING = "#listing";
+    private final Path file;
+    private final String settings;
+    private final Properties properties = new Properties();
+
+    private BookManifest(Path file, String settings) {
+        this.file = file;
+        this.settings = settings;
+    }
+
+    public static BookManifest load(Context context, String isbn, String artifact) throws IOException {
+        MessageDigest digest = HttpCache.sha256();
+        digest.update(context.getOutputSettings().getBytes(StandardCharsets.UTF_8));
+        BookManifest manifest = new BookManifest(Paths.get(MANIFEST_FOLDER, isbn + "-" + artifact + ".properties"),
+                HttpCache.hex(digest.digest()));
+        if (Files.exists(manifest.file)) {
+            try (InputStream input = Files.newInputStream(manifest.file)) {
+                manifest.properties.load(input);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * SHA-256 of every resource of the book by full path, plus the title of the book.
+     */
+    public static Map<String, String> checksums(BookData book) throws IOException {
+        Map<String, String> checksums = new LinkedHashMap<>();
+        checksums.put(TITLE, book.getTitleOriginal());
+        if (book.getListingChecksum() != null) {
+            checksums.put(LISTING, book.getListingChecksum());
+        }
+        byte[] buffer = new byte[64 * 1024];
+        for (ResourceItem item : book.getAllResources()) {
+            MessageDigest digest = HttpCache.sha256();
+            try (InputStream input = item.content.openStream()) {
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            checksums.put(item.fullPath, HttpCache.hex(digest.digest()));
+        }
+        return checksums;
+    }
+
+    /**
+     * False when the output of this version is known to be missing, so it has to be generated whatever the resources
+     * are.
+     */
+    public boolean mayBeUpToDate(String version) {
+        String output = properties.getProperty(OUTPUT);
+        return sameProcessor(version) && output != null
+                && Files.exists(file.getParent().getParent().resolve(output));
+    }
+
+    /**
+     * True when the output of this version was generated from a book with the same listing, so the book does not
+     * need to be fetched. A resource whose content changed without changing its entry of the listing is not noticed.
+     */
+    public boolean isUpToDate(String version, File output, String listing) {
+        return sameProcessor(version) && output.exists() && output.getName().equals(properties.getProperty(OUTPUT))
+                && listing.equals(properties.getProperty(RESOURCE_PREFIX + LISTING));
+    }
+
+    public boolean isUpToDate(String version, File output, Map<String, String> checksums) {
+        Set<String> changed = changed(version, output, checksums);
+        return changed != null && changed.isEmpty();
+    }
+
+    /**
+     * Full paths of the resources that changed since the output was generated. It is null when the output cannot be
+     * updated and has to be generated again, because it is missing, the processor or its settings are different or
+     * resources were added or removed.
+     */
+    public Set<String> changed(String version, File output, Map<String, String> checksums) {
+        if (!sameProcessor(version) || !output.exists()
+                || !output.getName().equals(properties.getProperty(OUTPUT))) {
+            return null;
+        }
+        Set<String> recorded = new HashSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(RESOURCE_PREFIX)) {
+                recorded.add(key.substring(RESOURCE_PREFIX.length()));
+            }
+        }
+        recorded.remove(LISTING);
+        Set<String> current = new HashSet<>(checksums.keySet());
+        current.remove(LISTING);
+        if (!recorded.equals(current)) {
+            return null;
+        }
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> entry : checksums.entrySet()) {
+            if (!LISTING.equals(entry.getKey())
+                    && !entry.getValue().equals(properties.getProperty(RESOURCE_PREFIX + entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        String listing = checksums.get(LISTING);
+        if (changed.isEmpty() && listing != null
+                && !listing.equals(properties.getProperty(RESOURCE_PREFIX + LISTING))) {
+            // The output is up to date, the new listing lets the next run skip the book without fetching it
+            try {
+                save(version, output, checksums);
+            } catch (IOException e) {
+                System.out.println("WARNING: Cannot update the manifest " + file + ": " + e);
+            }
+        }
+        return changed;
+    }
+
+    private boolean sameProcessor(String version) {
+        return version.equals(properties.getProperty(VERSION)) && settings.equals(properties.getProperty(SETTINGS));
+    }
+
+    public void save(String version, File output, Map<String, String> checksums) throws IOException {
+        properties.clear();
+        properties.setProperty(VERSION, version);
+        properties.setProperty(SETTINGS, settings);
+        properties.setProperty(OUTPUT, output.getName());
+        for (Map.Entry<String, String> entry : checksums.entrySet()) {
+            properties.setProperty(RESOURCE_PREFIX + entry.getKey(), entry.getValue());
+        }
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, null);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package es.tododev.ebooks;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the book once and generates every requested format from it, running the writers at the same time.
+ */
+public class BookProcessor implements Processor {
+
+    static final String EPUB = "epub";
+    static final String HTML = "html";
+    static final String PDF = "pdf";
+    static final String INDEX = "index";
+    static final String MOBI = "mobi";
+    // Writer of every format. They are loaded by name, so the PDF stack is only loaded when some book asks for it
+    private static final Map<String, String> WRITERS = new LinkedHashMap<>();
+    static {
+        WRITERS.put(EPUB, "es.tododev.ebooks.EpubWriter");
+        WRITERS.put(HTML, "es.tododev.ebooks.HtmlPdfWriter");
+        WRITERS.put(PDF, "es.tododev.ebooks.HtmlPdfWriter");
+        WRITERS.put(INDEX, "es.tododev.ebooks.SearchIndexWriter");
+        WRITERS.put(MOBI, "es.tododev.ebooks.MobiWriter");
+    }
+    private static final String SKIP_UNCHANGED_KEY = "books.skip.unchanged";
+    private final Context context;
+    private final String isbn;
+    private final Set<String> formats;
+
+    public BookProcessor(Context context, String isbn, Set<String> formats) {
+        this.context = context;
+        this.isbn = isbn;
+        this.formats = formats;
+    }
+
+    /**
+     * Formats of a comma separated list, like epub,html,pdf.
+     */
+    public static Set<String> formats(String list) {
+        Set<String> formats = new LinkedHashSet<>();
+        for (String format : list.split(",")) {
+            format = format.trim().toLowerCase();
+            if (format.isEmpty()) {
+                continue;
+            }
+            if (!WRITERS.containsKey(format)) {
+                throw new IllegalArgumentException("Unknown format " + format + ", expected one of "
+                        + String.join(", ", WRITERS.keySet()));
+            }
+            formats.add(format);
+        }
+        if (formats.isEmpty()) {
+            throw new IllegalArgumentException("No format in " + list);
+        }
+        return formats;
+    }
+
+    @Override
+    public void execute() throws Exception {
+        List<FormatWriter> writers = new ArrayList<>();
+        try (BookData book = new BookData(context, isbn)) {
+            // One writer can generate several formats
+            Set<String> classes = new LinkedHashSet<>();
+            for (String format : formats) {
+                classes.add(WRITERS.get(format));
+            }
+            for (String name : classes) {
+                writers.add(createWriter(name));
+            }
+            if (context.getBoolean(SKIP_UNCHANGED_KEY, true) && isUnchanged(book, writers)) {
+                System.out.println("Up to date " + isbn + ", its listing did not change");
+                return;
+            }
+            for (FormatWriter writer : writers) {
+                writer.prepare(book);
+            }
+            book.fetch();
+            Map<String, String> checksums = BookManifest.checksums(book);
+            if (writers.size() == 1) {
+                writers.get(0).write(book, checksums);
+            } else {
+                writeAll(writers, book, checksums);
+            }
+        } finally {
+            for (FormatWriter writer : writers) {
+                writer.close();
+            }
+        }
+    }
+
+    // Only the listing is downloaded, the book is fetched when any output may be outdated
+    private boolean isUnchanged(BookData book, List<FormatWriter> writers) throws Exception {
+        String listing = book.probeListing();
+        if (listing == null) {
+            return false;
+        }
+        for (FormatWriter writer : writers) {
+            if (!writer.isUpToDate(book.getBookName(), listing)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private FormatWriter createWriter(String name) throws Exception {
+        try {
+            return Class.forName(name).asSubclass(FormatWriter.class)
+                    .getConstructor(Context.class, String.class, Set.class).newInstance(context, isbn, formats);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void writeAll(List<FormatWriter> writers, BookData book, Map<String, String> checksums)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(writers.size());
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            for (FormatWriter writer : writers) {
+                futures.add(completion.submit(() -> {
+                    writer.write(book, checksums);
+                    return null;
+                }));
+            }
+            // The first failure cancels the other writers
+            for (int i = 0; i < futures.size(); i++) {
+                completion.take().get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
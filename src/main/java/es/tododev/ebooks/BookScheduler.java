@@ -0,0 +1,220 @@
+package es.tododev.ebooks;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import es.tododev.ebooks.BookJob.Status;
+
+/**
+ * Runs up to books.concurrency books at the same time. At most books.queue more books wait for a free slot,
+ * submitting beyond that blocks the caller. Every book is cancelled after books.timeout.minutes.
+ */
+public class BookScheduler implements Closeable {
+
+    private static final String CONCURRENCY_KEY = "books.concurrency";
+    private static final String QUEUE_KEY = "books.queue";
+    private static final String TIMEOUT_KEY = "books.timeout.minutes";
+    private final Function<String, Processor> processors;
+    private final Metrics metrics;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService watchdog;
+    private final Semaphore slots;
+    private final long timeoutMinutes;
+    private final List<BookJob> jobs = new ArrayList<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    public BookScheduler(Context context, Function<String, Processor> processors) {
+        this.processors = processors;
+        this.metrics = context.getMetrics();
+        int concurrency = concurrency(context);
+        int queue = Math.max(0, context.getInt(QUEUE_KEY, 16));
+        this.timeoutMinutes = context.getInt(TIMEOUT_KEY, 120);
+        this.slots = new Semaphore(concurrency + queue);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(concurrency,
+                runnable -> new Thread(runnable, "book-" + counter.incrementAndGet()));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "book-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static int concurrency(Context context) {
+        return Math.max(1, context.getInt(CONCURRENCY_KEY, 2));
+    }
+
+    public BookJob submit(String isbn) throws InterruptedException {
+        return submit(isbn, processors);
+    }
+
+    /**
+     * Like {@link #submit(String)}, with other processors for this book.
+     */
+    public BookJob submit(String isbn, Function<String, Processor> processors) throws InterruptedException {
+        slots.acquire();
+        return enqueue(isbn, processors);
+    }
+
+    /**
+     * Like {@link #submit(String, Function)}, but it returns null instead of waiting when the queue is full.
+     */
+    public BookJob trySubmit(String isbn, Function<String, Processor> processors) {
+        if (!slots.tryAcquire()) {
+            return null;
+        }
+        return enqueue(isbn, processors);
+    }
+
+    private BookJob enqueue(String isbn, Function<String, Processor> processors) {
+        BookJob job = new BookJob(ids.incrementAndGet(), isbn);
+        FutureTask<Void> task = new FutureTask<>(() -> run(job, processors), null);
+        job.future = task;
+        synchronized (jobs) {
+            jobs.add(job);
+        }
+        // The slot is free when the thread leaves the book, a cancelled book may still be running for a while
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                slots.release();
+            }
+        });
+        return job;
+    }
+
+    private void run(BookJob job, Function<String, Processor> processors) {
+        if (!job.start()) {
+            return;
+        }
+        ScheduledFuture<?> timeout = null;
+        if (timeoutMinutes > 0) {
+            timeout = watchdog.schedule(() -> stop(job, Status.TIMEOUT, "Timeout after " + timeoutMinutes + " minutes"),
+                    timeoutMinutes, TimeUnit.MINUTES);
+        }
+        try {
+            System.out.println("Processing ISBN: " + job.getIsbn());
+            // The metrics of a previous job of the same book do not add up
+            job.setMetrics(metrics.reset(job.getIsbn()));
+            processors.apply(job.getIsbn()).execute();
+            job.finish(Status.DONE, null);
+        } catch (InterruptedException e) {
+            job.finish(Status.CANCELLED, "Interrupted");
+        } catch (Exception e) {
+            e.printStackTrace();
+            job.finish(Status.FAILED, e.toString());
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    public boolean cancel(BookJob job) {
+        return stop(job, Status.CANCELLED, "Cancelled");
+    }
+
+    private boolean stop(BookJob job, Status status, String reason) {
+        if (job.finish(status, reason)) {
+            job.future.cancel(true);
+            return true;
+        }
+        return false;
+    }
+
+    public List<BookJob> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs);
+        }
+    }
+
+    public BookJob getJob(long id) {
+        synchronized (jobs) {
+            for (BookJob job : jobs) {
+                if (job.getId() == id) {
+                    return job;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forgets the oldest finished jobs, keeping the last ones. Schedulers that run for a long time call it so the
+     * list does not grow forever.
+     */
+    public void forgetFinished(int keep) {
+        synchronized (jobs) {
+            int finished = 0;
+            for (BookJob job : jobs) {
+                if (job.isFinished()) {
+                    finished++;
+                }
+            }
+            Set<String> forgotten = new HashSet<>();
+            Iterator<BookJob> iterator = jobs.iterator();
+            while (finished > keep && iterator.hasNext()) {
+                BookJob job = iterator.next();
+                if (job.isFinished()) {
+                    iterator.remove();
+                    forgotten.add(job.getIsbn());
+                    finished--;
+                }
+            }
+            // The metrics are kept while some job of the book is listed
+            for (BookJob job : jobs) {
+                forgotten.remove(job.getIsbn());
+            }
+            forgotten.forEach(metrics::forget);
+        }
+    }
+
+    public List<BookJob> awaitAll() throws InterruptedException {
+        List<BookJob> current = getJobs();
+        for (BookJob job : current) {
+            try {
+                job.future.get();
+            } catch (CancellationException | ExecutionException e) {
+                // Already recorded in the job
+            }
+        }
+        return current;
+    }
+
+    public static String summary(List<BookJob> jobs) {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("%-16s %-10s %9s %s%n", "ISBN", "STATUS", "TIME", "ERROR"));
+        Map<Status, Integer> totals = new EnumMap<>(Status.class);
+        for (BookJob job : jobs) {
+            summary.append(job).append(System.lineSeparator());
+            totals.merge(job.getStatus(), 1, Integer::sum);
+        }
+        summary.append("Total: ").append(jobs.size()).append(' ').append(totals);
+        return summary.toString();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        watchdog.shutdownNow();
+    }
+}
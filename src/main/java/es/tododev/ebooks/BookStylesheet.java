@@ -0,0 +1,342 @@
+package es.tododev.ebooks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jsoup.nodes.Element;
+
+/**
+ * Stylesheets of a book parsed into rules, without comments nor redundant whitespace. Flying Saucer matches every
+ * rule against every element, so the PDF chunks only get the rules whose selectors may match some of their elements.
+ * The check is conservative: only the element names, classes and ids that selectors require are looked at, and
+ * selectors that are not understood are always kept.
+ */
+class BookStylesheet {
+
+    // Spaces around colons only matter in selectors
+    private static final String DECLARATIONS = "{};,:";
+    private static final BookStylesheet EMPTY = new BookStylesheet(Collections.emptyList());
+    private final List<Rule> rules;
+
+    private BookStylesheet(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    static BookStylesheet parse(String css) {
+        if (css == null || css.isBlank()) {
+            return EMPTY;
+        }
+        return new BookStylesheet(parseRules(css));
+    }
+
+    /**
+     * Stylesheets one after the other. A rule repeated later with the same declarations always wins over the first
+     * one, so only the last copy is kept.
+     */
+    static BookStylesheet merge(Collection<BookStylesheet> sheets) {
+        List<Rule> all = new ArrayList<>();
+        for (BookStylesheet sheet : sheets) {
+            all.addAll(sheet.rules);
+        }
+        Set<String> seen = new HashSet<>();
+        List<Rule> merged = new ArrayList<>();
+        for (int i = all.size() - 1; i >= 0; i--) {
+            if (seen.add(all.get(i).text)) {
+                merged.add(all.get(i));
+            }
+        }
+        Collections.reverse(merged);
+        return new BookStylesheet(merged);
+    }
+
+    String toCss() {
+        return toCss(null);
+    }
+
+    /**
+     * The rules that may match a document with these features, all of them when they are null.
+     */
+    String toCss(Set<String> features) {
+        return Rule.toCss(rules, features);
+    }
+
+    /**
+     * Adds the names, classes and ids of the element and its descendants, the way selectors reference them.
+     */
+    static void features(Element root, Set<String> features) {
+        for (Element element : root.getAllElements()) {
+            features.add(element.tagName().toLowerCase());
+            for (String name : element.classNames()) {
+                features.add("." + name);
+            }
+            if (!element.id().isEmpty()) {
+                features.add("#" + element.id());
+            }
+        }
+    }
+
+    private static List<Rule> parseRules(String css) {
+        List<Rule> rules = new ArrayList<>();
+        int length = css.length();
+        int start = 0;
+        int i = 0;
+        while (i < length) {
+            char c = css.charAt(i);
+            if (c == '/' && i + 1 < length && css.charAt(i + 1) == '*') {
+                i = skipComment(css, i);
+            } else if (c == '"' || c == '\'') {
+                i = skipString(css, i);
+            } else if (c == ';') {
+                // Statements as @import, the rest of declarations outside of a block are ignored like browsers do
+                String prelude = compact(css.substring(start, i));
+                if (prelude.startsWith("@") && !prelude.toLowerCase().startsWith("@charset")) {
+                    rules.add(new Rule(prelude + ";", null, null));
+                }
+                start = ++i;
+            } else if (c == '{') {
+                int end = blockEnd(css, i);
+                String prelude = compact(css.substring(start, i));
+                String block = css.substring(i + 1, Math.min(end, length));
+                String lower = prelude.toLowerCase();
+                if (lower.startsWith("@media") || lower.startsWith("@supports")) {
+                    rules.add(new Rule(prelude, null, parseRules(block)));
+                } else if (!prelude.isEmpty()) {
+                    String rule = prelude + "{" + compact(block, DECLARATIONS) + "}";
+                    rules.add(new Rule(rule, prelude.startsWith("@") ? null : requirements(prelude), null));
+                }
+                start = i = end + 1;
+            } else if (c == '}') {
+                // Unbalanced
+                start = ++i;
+            } else {
+                i++;
+            }
+        }
+        return rules;
+    }
+
+    // Index of the brace that closes the block, or the length when it is not closed
+    private static int blockEnd(String css, int open) {
+        int depth = 0;
+        int i = open;
+        while (i < css.length()) {
+            char c = css.charAt(i);
+            if (c == '/' && i + 1 < css.length() && css.charAt(i + 1) == '*') {
+                i = skipComment(css, i);
+                continue;
+            } else if (c == '"' || c == '\'') {
+                i = skipString(css, i);
+                continue;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i;
+            }
+            i++;
+        }
+        return css.length();
+    }
+
+    private static int skipComment(String css, int i) {
+        int end = css.indexOf("*/", i + 2);
+        return end == -1 ? css.length() : end + 2;
+    }
+
+    private static int skipString(String css, int i) {
+        char quote = css.charAt(i);
+        for (int j = i + 1; j < css.length(); j++) {
+            char c = css.charAt(j);
+            if (c == '\\') {
+                j++;
+            } else if (c == quote || c == '\n') {
+                return j + 1;
+            }
+        }
+        return css.length();
+    }
+
+    private static String compact(String css) {
+        return compact(css, "{};,");
+    }
+
+    // Without comments and with one space where there was whitespace, except around the punctuation that does not
+    // need it. Strings are kept as they are
+    private static String compact(String css, String punctuation) {
+        StringBuilder compact = new StringBuilder(css.length());
+        boolean space = false;
+        int i = 0;
+        while (i < css.length()) {
+            char c = css.charAt(i);
+            if (c == '/' && i + 1 < css.length() && css.charAt(i + 1) == '*') {
+                i = skipComment(css, i);
+                space = true;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = true;
+                i++;
+                continue;
+            }
+            if (space && compact.length() > 0 && punctuation.indexOf(c) == -1
+                    && punctuation.indexOf(compact.charAt(compact.length() - 1)) == -1) {
+                compact.append(' ');
+            }
+            space = false;
+            if (c == '"' || c == '\'') {
+                int end = skipString(css, i);
+                compact.append(css, i, end);
+                i = end;
+            } else {
+                compact.append(c);
+                i++;
+            }
+        }
+        return compact.toString();
+    }
+
+    /**
+     * Features required by every selector of the list, or null when some selector may match anything.
+     */
+    static List<Set<String>> requirements(String selectors) {
+        List<Set<String>> requirements = new ArrayList<>();
+        for (String selector : splitSelectors(selectors)) {
+            Set<String> required = selectorRequirements(selector);
+            if (required == null || required.isEmpty()) {
+                return null;
+            }
+            requirements.add(required);
+        }
+        return requirements;
+    }
+
+    private static List<String> splitSelectors(String selectors) {
+        List<String> list = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < selectors.length(); i++) {
+            char c = selectors.charAt(i);
+            if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                list.add(selectors.substring(start, i));
+                start = i + 1;
+            }
+        }
+        list.add(selectors.substring(start));
+        return list;
+    }
+
+    // Names, classes and ids outside of pseudo-classes and attribute selectors, null for selectors with escapes or
+    // namespaces that are not worth handling
+    private static Set<String> selectorRequirements(String selector) {
+        if (selector.indexOf('\\') != -1 || selector.indexOf('|') != -1) {
+            return null;
+        }
+        Set<String> required = new LinkedHashSet<>();
+        int depth = 0;
+        boolean compoundStart = true;
+        int i = 0;
+        while (i < selector.length()) {
+            char c = selector.charAt(i);
+            if (c == '(' || c == '[') {
+                depth++;
+                i++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+                i++;
+            } else if (depth > 0) {
+                i++;
+            } else if (c == ' ' || c == '>' || c == '+' || c == '~') {
+                compoundStart = true;
+                i++;
+            } else if (c == '.' || c == '#') {
+                int end = identifierEnd(selector, i + 1);
+                required.add(c + selector.substring(i + 1, end));
+                compoundStart = false;
+                i = Math.max(end, i + 1);
+            } else if (c == ':') {
+                while (i < selector.length() && selector.charAt(i) == ':') {
+                    i++;
+                }
+                i = identifierEnd(selector, i);
+                compoundStart = false;
+            } else if (compoundStart && isIdentifier(c)) {
+                int end = identifierEnd(selector, i);
+                required.add(selector.substring(i, end).toLowerCase());
+                compoundStart = false;
+                i = end;
+            } else {
+                compoundStart = false;
+                i++;
+            }
+        }
+        return required;
+    }
+
+    private static boolean isIdentifier(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c > 127;
+    }
+
+    private static int identifierEnd(String selector, int i) {
+        while (i < selector.length() && isIdentifier(selector.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static class Rule {
+        // The whole rule, with the nested rules for blocks like @media
+        private final String text;
+        private final String prelude;
+        // Features required by each selector, null when it is kept anyway
+        private final List<Set<String>> requirements;
+        private final List<Rule> nested;
+
+        private Rule(String text, List<Set<String>> requirements, List<Rule> nested) {
+            this.text = nested == null ? text : text + "{" + toCss(nested, null) + "}";
+            this.prelude = text;
+            this.requirements = requirements;
+            this.nested = nested;
+        }
+
+        private void append(StringBuilder css, Set<String> features) {
+            if (features == null) {
+                css.append(text).append('\n');
+            } else if (nested != null) {
+                String content = toCss(nested, features);
+                if (!content.isEmpty()) {
+                    css.append(prelude).append('{').append(content).append("}\n");
+                }
+            } else if (matches(features)) {
+                css.append(text).append('\n');
+            }
+        }
+
+        private boolean matches(Set<String> features) {
+            if (requirements == null) {
+                return true;
+            }
+            for (Set<String> required : requirements) {
+                if (features.containsAll(required)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String toCss(List<Rule> rules, Set<String> features) {
+            StringBuilder css = new StringBuilder();
+            for (Rule rule : rules) {
+                rule.append(css, features);
+            }
+            return css.toString();
+        }
+    }
+}
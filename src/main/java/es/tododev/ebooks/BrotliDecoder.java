@@ -0,0 +1,31 @@
+package es.tododev.ebooks;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+
+import org.brotli.dec.BrotliInputStream;
+
+/**
+ * Decodes br responses. Requests are never sent compressed, so it only takes part in reading.
+ */
+@Priority(Priorities.ENTITY_CODER)
+public class BrotliDecoder implements ReaderInterceptor {
+
+    private static final String BROTLI = "br";
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException {
+        List<String> encodings = context.getHeaders().get(HttpHeaders.CONTENT_ENCODING);
+        if (encodings != null && encodings.size() == 1 && BROTLI.equalsIgnoreCase(encodings.get(0).trim())) {
+            context.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+            context.setInputStream(new BrotliInputStream(context.getInputStream()));
+        }
+        return context.proceed();
+    }
+}
@@ -0,0 +1,338 @@
+package es.tododev.ebooks;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.xhtmlrenderer.css.style.CalculatedStyle;
+import org.xhtmlrenderer.layout.Layer;
+import org.xhtmlrenderer.layout.LayoutContext;
+import org.xhtmlrenderer.layout.SharedContext;
+import org.xhtmlrenderer.pdf.ITextFontContext;
+import org.xhtmlrenderer.pdf.ITextRenderer;
+import org.xhtmlrenderer.render.Box;
+import org.xhtmlrenderer.render.PageBox;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.PdfArray;
+import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfNull;
+import com.lowagie.text.pdf.PdfNumber;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfSmartCopy;
+import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.PdfString;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Renders the PDF of a book in chunks of chapters. Every chunk is laid out by its own renderer as soon as it is
+ * written, so only the box trees of the chunks being rendered are in memory. The chunks are merged at the end, the
+ * internal links are resolved across chunks and every chapter gets an entry in the outline.
+ */
+class ChunkedPdfRenderer implements Closeable {
+
+    // Internal links are written with this scheme, so they can be pointed to other chunks after merging them
+    static final String ANCHOR_SCHEME = "ebook-anchor:";
+    private static final String CHAPTER_ID_PREFIX = "ebook-chapter-";
+    // Estimated memory of the box tree of a chunk, relative to the size of its HTML
+    private static final int LAYOUT_FACTOR = 8;
+    // Layout does not stop when it is interrupted, so closing waits for the chunks being rendered
+    private static final long CLOSE_TIMEOUT_MINUTES = 10;
+    private final Map<String, ResourceItem> media;
+    private final MemoryBudget budget;
+    private final long chunkSize;
+    private final Path folder;
+    private final ExecutorService executor;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private String head;
+    private BookStylesheet defaults;
+    private BookStylesheet stylesheet;
+    private boolean prune;
+    private Chunk current;
+    private Writer writer;
+
+    ChunkedPdfRenderer(Path tempRoot, String prefix, Map<String, ResourceItem> media, MemoryBudget budget,
+            long chunkSize, int threads) throws IOException {
+        this.media = media;
+        this.budget = budget;
+        this.chunkSize = chunkSize;
+        Files.createDirectories(tempRoot);
+        this.folder = Files.createTempDirectory(tempRoot, prefix);
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * The head links the stylesheet of every chunk: the defaults, the inline styles of its chapters and the
+     * stylesheet of the book. When pruning, it only has the rules that may match the chapters.
+     */
+    void start(String head, BookStylesheet defaults, BookStylesheet stylesheet, boolean prune) {
+        this.head = head;
+        this.defaults = defaults;
+        this.stylesheet = stylesheet;
+        this.prune = prune;
+    }
+
+    void addChapter(String title, String body, BookStylesheet inlineStyles, Set<String> features) throws IOException {
+        if (current == null) {
+            current = new Chunk(chunks.size());
+            chunks.add(current);
+            writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(current.source), StandardCharsets.UTF_8));
+            writer.write(head);
+        }
+        String id = CHAPTER_ID_PREFIX + current.index + "-" + current.chapters.size();
+        current.chapters.put(id, title);
+        current.inlineStyles.add(inlineStyles);
+        current.features.addAll(features);
+        writer.write("<div id=\"" + id + "\"></div>\n");
+        writer.write(body.replace("href=\"#", "href=\"" + ANCHOR_SCHEME));
+        writer.write("\n");
+        current.size += body.length();
+        if (current.size >= chunkSize) {
+            closeChunk();
+        }
+    }
+
+    void render(File pdf) throws IOException, InterruptedException {
+        closeChunk();
+        try {
+            for (Chunk chunk : chunks) {
+                chunk.rendered.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        File merged = folder.resolve("merged.pdf").toFile();
+        try {
+            merge(merged);
+            resolveLinks(merged, pdf);
+        } catch (DocumentException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void closeChunk() throws IOException {
+        if (current == null) {
+            return;
+        }
+        Chunk chunk = current;
+        current = null;
+        writer.write("</body>\n</html>\n");
+        writer.close();
+        List<BookStylesheet> sheets = new ArrayList<>();
+        sheets.add(defaults);
+        sheets.addAll(chunk.inlineStyles);
+        sheets.add(stylesheet);
+        // The chunk wraps every chapter in a div
+        chunk.features.add("div");
+        chunk.css = BookStylesheet.merge(sheets).toCss(prune ? chunk.features : null);
+        chunk.rendered = executor.submit(() -> {
+            try (MemoryBudget.Permit permit = budget.acquire(chunk.size * LAYOUT_FACTOR)) {
+                render(chunk);
+            }
+            return null;
+        });
+    }
+
+    private void render(Chunk chunk) throws IOException, DocumentException {
+        ITextRenderer renderer = new ITextRenderer();
+        SharedContext sharedContext = renderer.getSharedContext();
+        MediaUserAgent userAgent = new MediaUserAgent(renderer.getOutputDevice(), media, chunk.css);
+        userAgent.setSharedContext(sharedContext);
+        sharedContext.setUserAgentCallback(userAgent);
+        sharedContext.setPrint(true);
+        sharedContext.setInteractive(false);
+        renderer.setDocument(chunk.source);
+        renderer.layout();
+        try (OutputStream output = new FileOutputStream(chunk.pdf)) {
+            renderer.createPDF(output);
+        }
+        // Remember where every element with an id is, the same way Flying Saucer computes its destinations
+        LayoutContext layoutContext = sharedContext.newLayoutContextInstance();
+        layoutContext.setFontContext(new ITextFontContext());
+        Layer layer = renderer.getRootBox().getLayer();
+        List<?> pages = layer.getPages();
+        for (Object value : sharedContext.getIdMap().entrySet()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) value;
+            Box box = (Box) entry.getValue();
+            PageBox page = layer.getPage(layoutContext, box.getAbsY());
+            if (page != null) {
+                int fromTop = page.getMarginBorderPadding(layoutContext, CalculatedStyle.TOP) + box.getAbsY()
+                        - page.getTop();
+                chunk.anchors.put((String) entry.getKey(),
+                        new Anchor(pages.indexOf(page) + 1, fromTop / renderer.getDotsPerPoint()));
+            }
+        }
+        chunk.source.delete();
+    }
+
+    private void merge(File merged) throws IOException, DocumentException {
+        Document document = new Document();
+        try (OutputStream output = new FileOutputStream(merged)) {
+            // Identical streams, as the images repeated in several chunks, are written once
+            PdfCopy copy = new PdfSmartCopy(document, output);
+            document.open();
+            int offset = 0;
+            for (Chunk chunk : chunks) {
+                PdfReader reader = new PdfReader(chunk.pdf.getAbsolutePath());
+                chunk.offset = offset;
+                chunk.pages = reader.getNumberOfPages();
+                for (int i = 1; i <= chunk.pages; i++) {
+                    copy.addPage(copy.getImportedPage(reader, i));
+                }
+                copy.freeReader(reader);
+                reader.close();
+                chunk.pdf.delete();
+                offset += chunk.pages;
+            }
+            document.close();
+        }
+    }
+
+    private void resolveLinks(File merged, File pdf) throws IOException, DocumentException {
+        PdfReader reader = new PdfReader(merged.getAbsolutePath());
+        try (OutputStream output = new FileOutputStream(pdf)) {
+            PdfStamper stamper = new PdfStamper(reader, output);
+            List<Map<String, Object>> outline = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                for (int page = chunk.offset + 1; page <= chunk.offset + chunk.pages; page++) {
+                    PdfArray annotations = reader.getPageN(page).getAsArray(PdfName.ANNOTS);
+                    if (annotations != null) {
+                        resolveLinks(reader, chunk, annotations);
+                    }
+                }
+                for (Map.Entry<String, String> chapter : chunk.chapters.entrySet()) {
+                    Anchor anchor = chunk.anchors.get(chapter.getKey());
+                    if (anchor != null) {
+                        int page = chunk.offset + anchor.page;
+                        Map<String, Object> bookmark = new HashMap<>();
+                        bookmark.put("Title", chapter.getValue());
+                        bookmark.put("Action", "GoTo");
+                        bookmark.put("Page", page + " XYZ 0 " + top(reader, page, anchor) + " 0");
+                        outline.add(bookmark);
+                    }
+                }
+            }
+            stamper.setOutlines(outline);
+            stamper.close();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void resolveLinks(PdfReader reader, Chunk chunk, PdfArray annotations) {
+        for (int i = annotations.size() - 1; i >= 0; i--) {
+            PdfDictionary annotation = annotations.getAsDict(i);
+            PdfDictionary action = annotation == null ? null : annotation.getAsDict(PdfName.A);
+            PdfString uri = action == null ? null : action.getAsString(PdfName.URI);
+            if (uri == null || !uri.toUnicodeString().startsWith(ANCHOR_SCHEME)) {
+                continue;
+            }
+            String id = uri.toUnicodeString().substring(ANCHOR_SCHEME.length());
+            // Ids are not unique across chapters, the chunk of the link is preferred like a single document would do
+            Chunk target = chunk.anchors.containsKey(id) ? chunk : null;
+            for (int c = 0; target == null && c < chunks.size(); c++) {
+                if (chunks.get(c).anchors.containsKey(id)) {
+                    target = chunks.get(c);
+                }
+            }
+            if (target == null) {
+                annotations.remove(i);
+                continue;
+            }
+            Anchor anchor = target.anchors.get(id);
+            int page = target.offset + anchor.page;
+            PdfArray destination = new PdfArray();
+            destination.add(reader.getPageOrigRef(page));
+            destination.add(PdfName.XYZ);
+            destination.add(PdfNull.PDFNULL);
+            destination.add(new PdfNumber(top(reader, page, anchor)));
+            destination.add(PdfNull.PDFNULL);
+            annotation.remove(PdfName.A);
+            annotation.put(PdfName.DEST, destination);
+        }
+    }
+
+    private float top(PdfReader reader, int page, Anchor anchor) {
+        return reader.getPageSize(page).getHeight() - anchor.fromTop;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if (writer != null) {
+            writer.close();
+        }
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                System.out.println("WARNING: PDF chunks of " + folder + " are still being rendered");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private class Chunk {
+        private final int index;
+        private final File source;
+        private final File pdf;
+        // Id of the first element of every chapter and its title
+        private final Map<String, String> chapters = new LinkedHashMap<>();
+        private final Map<String, Anchor> anchors = new HashMap<>();
+        private final Set<BookStylesheet> inlineStyles = new LinkedHashSet<>();
+        private final Set<String> features = new HashSet<>();
+        private String css;
+        private long size;
+        private Future<?> rendered;
+        private int offset;
+        private int pages;
+
+        private Chunk(int index) {
+            this.index = index;
+            this.source = folder.resolve("chunk-" + index + ".xhtml").toFile();
+            this.pdf = folder.resolve("chunk-" + index + ".pdf").toFile();
+        }
+    }
+
+    private static class Anchor {
+        private final int page;
+        private final float fromTop;
+
+        private Anchor(int page, float fromTop) {
+            this.page = page;
+            this.fromTop = fromTop;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package es.tododev.ebooks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class Context implements Closeable {
+
+    private static final String BASE_URL_KEY = "base.url";
+    private static final String HEADER_PREFIX = "header.";
+    private static final String STORE_MEMORY_BUDGET_KEY = "store.memory.budget";
+    private static final String STORE_MEMORY_RESERVE_KEY = "store.memory.reserve";
+    private static final String STORE_MEMORY_THRESHOLD_KEY = "store.memory.threshold";
+    private static final String STORE_TEMP_DIR_KEY = "store.temp.dir";
+    private static final String DOWNLOAD_CONCURRENCY_KEY = "download.concurrency";
+    private static final String DOWNLOAD_HOST_RATE_KEY = "download.host.rate";
+    // Settings that change the generated books
+    private static final List<String> OUTPUT_KEYS = Arrays.asList("html.inline.images", "pdf.css.prune");
+    private static final String OUTPUT_PREFIX = "image.";
+    private final Properties properties;
+    private final String baseUrl;
+    private final Map<String, String> httpHeaders;
+    private final MemoryBudget memoryBudget;
+    private final HostRateLimiter rateLimiter;
+    private final Metrics metrics = new Metrics();
+    private HttpTransport transport;
+
+    public Context(Properties properties) {
+        this.properties = properties;
+        this.baseUrl = properties.getProperty(BASE_URL_KEY);
+        Map<String, String> headers = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(HEADER_PREFIX)) {
+                headers.put(key.substring(HEADER_PREFIX.length()), properties.getProperty(key));
+            }
+        }
+        this.httpHeaders = Collections.unmodifiableMap(headers);
+        long budget = getSize(STORE_MEMORY_BUDGET_KEY, 256 * 1024 * 1024);
+        this.memoryBudget = new MemoryBudget(budget, getSize(STORE_MEMORY_RESERVE_KEY, budget / 4));
+        this.rateLimiter = new HostRateLimiter(Double.parseDouble(getProperty(DOWNLOAD_HOST_RATE_KEY, "10")));
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public Map<String, String> getHttpHeaders() {
+        return httpHeaders;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public HostRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public synchronized HttpTransport getTransport() throws IOException {
+        if (transport == null) {
+            transport = new HttpTransport(this);
+        }
+        return transport;
+    }
+
+    /**
+     * The settings that change the generated books, as sorted key=value lines.
+     */
+    public String getOutputSettings() {
+        Set<String> keys = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (OUTPUT_KEYS.contains(key) || key.startsWith(OUTPUT_PREFIX)) {
+                keys.add(key);
+            }
+        }
+        StringBuilder settings = new StringBuilder();
+        for (String key : keys) {
+            String value = getProperty(key, null);
+            if (value != null) {
+                settings.append(key).append('=').append(value).append('\n');
+            }
+        }
+        return settings.toString();
+    }
+
+    public int getDownloadConcurrency() {
+        return Math.max(1, getInt(DOWNLOAD_CONCURRENCY_KEY, 8));
+    }
+
+    public ResourceStore createResourceStore(String isbn) {
+        int threshold = (int) getSize(STORE_MEMORY_THRESHOLD_KEY, 1024 * 1024);
+        return new SpillingResourceStore(memoryBudget, threshold, getTempRoot(), "ebooks-" + isbn + "-");
+    }
+
+    /**
+     * Folder of the temporary files of the books, store.temp.dir or the temporary folder of the system.
+     */
+    public Path getTempRoot() {
+        return Paths.get(getProperty(STORE_TEMP_DIR_KEY, System.getProperty("java.io.tmpdir")));
+    }
+
+    public String getProperty(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return Integer.parseInt(getProperty(key, Integer.toString(defaultValue)));
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getProperty(key, Boolean.toString(defaultValue)));
+    }
+
+    /**
+     * Sizes accept the k, m and g suffixes, for example 512m.
+     */
+    public long getSize(String key, long defaultValue) {
+        String value = getProperty(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        value = value.toLowerCase();
+        long multiplier = 1;
+        char unit = value.charAt(value.length() - 1);
+        if (unit == 'k') {
+            multiplier = 1024;
+        } else if (unit == 'm') {
+            multiplier = 1024 * 1024;
+        } else if (unit == 'g') {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value.trim()) * multiplier;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (transport != null) {
+            transport.close();
+            transport = null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package es.tododev.ebooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+public class EpubWriter implements FormatWriter {
+
+    private static final String BOOKS_FOLDER = "books/";
+    // Increase it when the generated EPUB changes, so existing books are generated again
+    static final String VERSION = "4";
+    private static final String ARTIFACT = "epub";
+    private final Context context;
+    private final String isbn;
+    private final BookManifest manifest;
+    private final StreamingEpubWriter writer;
+
+    public EpubWriter(Context context, String isbn, Set<String> formats) throws IOException {
+        this(context, isbn);
+    }
+
+    public EpubWriter(Context context, String isbn) throws IOException {
+        this.context = context;
+        this.isbn = isbn;
+        this.manifest = BookManifest.load(context, isbn, ARTIFACT);
+        this.writer = new StreamingEpubWriter(new File(BOOKS_FOLDER), isbn + "-");
+    }
+
+    @Override
+    public void prepare(BookData book) {
+        if (!manifest.mayBeUpToDate(VERSION)) {
+            // The EPUB has to be generated, so the resources are written while the rest is downloading
+            book.setListener(item -> {
+                if (item != book.getOpfResource() && item != book.getNcxResource()) {
+                    writer.write(item);
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean isUpToDate(String bookName, String listing) {
+        return manifest.isUpToDate(VERSION, file(bookName), listing);
+    }
+
+    private File file(String bookName) {
+        return new File(BOOKS_FOLDER + isbn + "-" + bookName + ".epub");
+    }
+
+    @Override
+    public void write(BookData book, Map<String, String> checksums) throws IOException {
+        File epub = file(book.getBookName());
+        Set<String> changed = manifest.changed(VERSION, epub, checksums);
+        if (changed != null && changed.isEmpty()) {
+            System.out.println("Up to date " + epub.getAbsolutePath());
+            return;
+        }
+        try (Metrics.Timer timer = context.getMetrics().book(isbn).phase(Metrics.EPUB)) {
+            if (changed != null && canUpdate(book, changed)) {
+                updateEpub(book, epub, changed);
+                System.out.println("Updated " + changed.size() + " resources in " + epub.getAbsolutePath());
+            } else {
+                writer.finish(book, isbn, epub);
+                System.out.println("Generated " + epub.getAbsolutePath());
+            }
+        }
+        manifest.save(VERSION, epub, checksums);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    // Package document and table of contents are generated from the book structure, so they must not change
+    private boolean canUpdate(BookData book, Set<String> changed) {
+        if (changed.contains(BookManifest.TITLE)) {
+            return false;
+        }
+        for (ResourceItem item : Arrays.asList(book.getOpfResource(), book.getNcxResource())) {
+            if (item != null && changed.contains(item.fullPath)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void updateEpub(BookData data, File epub, Set<String> changed) throws IOException {
+        // The zip file system only rewrites the replaced entries, the rest are copied as they are. The new entries
+        // are kept in temporary files instead of memory until the EPUB is written
+        URI uri = URI.create("jar:" + epub.getAbsoluteFile().toURI());
+        try (FileSystem zip = FileSystems.newFileSystem(uri, Collections.singletonMap("useTempFile", Boolean.TRUE))) {
+            for (ResourceItem item : data.getAllResources()) {
+                if (changed.contains(item.fullPath)) {
+                    try (InputStream input = item.content.openStream()) {
+                        Files.copy(input, zip.getPath(StreamingEpubWriter.CONTENT_FOLDER, item.fullPath),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package es.tododev.ebooks;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * One page of the files listing of a book. The results are handed to the consumer while the JSON is
+ * being read, so big listings are never materialized.
+ */
+public class FileListing {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+    private static final ObjectReader ENTRY_READER = MAPPER.readerFor(FileEntry.class);
+    private String next;
+    private long count = -1;
+
+    public static FileListing read(InputStream input, EntryConsumer consumer) throws IOException, InterruptedException {
+        FileListing listing = new FileListing();
+        try (JsonParser parser = FACTORY.createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected files listing format");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("results".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        consumer.accept(ENTRY_READER.readValue(parser));
+                    }
+                } else if ("next".equals(field)) {
+                    listing.next = value == JsonToken.VALUE_NULL ? null : parser.getText();
+                } else if ("count".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                    listing.count = parser.getLongValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return listing;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    /**
+     * Total number of files of the book, or -1 when the listing does not report it.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public interface EntryConsumer {
+        void accept(FileEntry entry) throws InterruptedException;
+    }
+
+    public static class FileEntry {
+        @JsonProperty("url")
+        public String url;
+        @JsonProperty("media_type")
+        public String mediaType;
+        @JsonProperty("full_path")
+        public String fullPath;
+        @JsonProperty("filename")
+        public String fileName;
+        // stylesheet, chapter, image, other_asset
+        @JsonProperty("kind")
+        public String kind;
+    }
+}
@@ -0,0 +1,38 @@
+package es.tododev.ebooks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Generates one or more output formats of a book. All the writers of a book share the same download, and once it
+ * finished they run at the same time, so they must only read the book.
+ * <p>
+ * Writers are created by name from {@link BookProcessor}, with a public constructor that receives the context, the
+ * ISBN and the requested formats.
+ */
+public interface FormatWriter extends Closeable {
+
+    /**
+     * Invoked before the book is fetched, for example to register a listener that writes the resources while the
+     * rest of the book is downloading.
+     */
+    default void prepare(BookData book) throws IOException {
+    }
+
+    /**
+     * True when every output was generated from a book with this name and listing checksum, so the book is not fetched.
+     */
+    default boolean isUpToDate(String bookName, String listing) throws IOException {
+        return false;
+    }
+
+    /**
+     * Writes the outputs that are not up to date with the checksums of the book.
+     */
+    void write(BookData book, Map<String, String> checksums) throws Exception;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
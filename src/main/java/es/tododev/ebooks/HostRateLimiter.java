@@ -0,0 +1,56 @@
+package es.tododev.ebooks;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces the requests sent to the same host, whatever book they belong to.
+ */
+public class HostRateLimiter {
+
+    private final long intervalNanos;
+    private final Map<String, Long> nextSlots = new HashMap<>();
+
+    public HostRateLimiter(double requestsPerSecond) {
+        this.intervalNanos = requestsPerSecond <= 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+    }
+
+    public void acquire(String url) throws InterruptedException {
+        String host = URI.create(url).getHost();
+        long wait;
+        synchronized (nextSlots) {
+            long now = System.nanoTime();
+            Long next = nextSlots.get(host);
+            if (intervalNanos == 0) {
+                // Without rate limit there are only slots while the host is paused
+                if (next == null) {
+                    return;
+                } else if (next <= now) {
+                    nextSlots.remove(host);
+                    return;
+                }
+                wait = next - now;
+            } else {
+                long slot = next == null ? now : Math.max(now, next);
+                nextSlots.put(host, slot + intervalNanos);
+                wait = slot - now;
+            }
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * No request is sent to the host of the URL during the given time, like when it answered with Retry-After.
+     */
+    public void pause(String url, long millis) {
+        String host = URI.create(url).getHost();
+        synchronized (nextSlots) {
+            long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            nextSlots.merge(host, until, Math::max);
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package es.tododev.ebooks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Entities.EscapeMode;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Writes the book as a standalone HTML and as a PDF rendered from the same chapters. Either of them can be disabled.
+ */
+public class HtmlPdfWriter implements FormatWriter {
+
+    private static final String BOOKS_FOLDER = "books/";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Increase it when the generated HTML or PDF changes, so existing books are generated again
+    static final String VERSION = "8";
+    private static final String INLINE_IMAGES_KEY = "html.inline.images";
+    private static final String PDF_CHUNK_SIZE_KEY = "pdf.chunk.size";
+    private static final String PDF_THREADS_KEY = "pdf.threads";
+    private static final String PDF_CSS_PRUNE_KEY = "pdf.css.prune";
+    // Estimated memory of a chapter while it is parsed and written, relative to its size
+    private static final int CHAPTER_FACTOR = 4;
+    // Flying Saucer lays out the HTML5 sectioning elements as inline, as it does not know them
+    private static final String HTML5_BLOCKS =
+            "article, aside, figcaption, figure, footer, header, main, nav, section { display: block; }";
+    private final Context context;
+    private final String isbn;
+    private final boolean html;
+    private final boolean pdf;
+
+    public HtmlPdfWriter(Context context, String isbn, Set<String> formats) {
+        this(context, isbn, formats.contains(BookProcessor.HTML), formats.contains(BookProcessor.PDF));
+    }
+
+    public HtmlPdfWriter(Context context, String isbn, boolean html, boolean pdf) {
+        this.context = context;
+        this.isbn = isbn;
+        this.html = html;
+        this.pdf = pdf;
+    }
+
+    @Override
+    public boolean isUpToDate(String bookName, String listing) throws IOException {
+        return (!html || BookManifest.load(context, isbn, "html").isUpToDate(VERSION, file(bookName, ".html"),
+                listing)) && (!pdf || BookManifest.load(context, isbn, "pdf").isUpToDate(VERSION,
+                        file(bookName, ".pdf"), listing));
+    }
+
+    private File file(String bookName, String extension) {
+        return new File(BOOKS_FOLDER + isbn + "-" + bookName + extension);
+    }
+
+    @Override
+    public void write(BookData book, Map<String, String> checksums) throws Exception {
+        File htmlFile = file(book.getBookName(), ".html");
+        File pdfFile = file(book.getBookName(), ".pdf");
+        BookManifest htmlManifest = BookManifest.load(context, isbn, "html");
+        BookManifest pdfManifest = BookManifest.load(context, isbn, "pdf");
+        boolean writeHtml = html && !htmlManifest.isUpToDate(VERSION, htmlFile, checksums);
+        boolean writePdf = pdf && !pdfManifest.isUpToDate(VERSION, pdfFile, checksums);
+        if (html && !writeHtml) {
+            System.out.println("Up to date " + htmlFile.getAbsolutePath());
+        }
+        if (pdf && !writePdf) {
+            System.out.println("Up to date " + pdfFile.getAbsolutePath());
+        }
+        if (!writeHtml && !writePdf) {
+            return;
+        }
+        Metrics.BookMetrics metrics = context.getMetrics().book(isbn);
+        if (!writePdf) {
+            try (Metrics.Timer timer = metrics.phase(Metrics.HTML)) {
+                createHtml(htmlFile, null, book);
+            }
+            htmlManifest.save(VERSION, htmlFile, checksums);
+            System.out.println("Generated " + htmlFile.getAbsolutePath());
+            return;
+        }
+        // The PDF is rendered from copies of the HTML that reference the images instead of embedding them,
+        // in chunks of chapters that are rendered while the HTML is still being written
+        long chunkSize = context.getSize(PDF_CHUNK_SIZE_KEY, 2 * 1024 * 1024);
+        int pdfThreads = context.getInt(PDF_THREADS_KEY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        try (ChunkedPdfRenderer pdfRenderer = new ChunkedPdfRenderer(context.getTempRoot(), "ebooks-" + isbn + "-",
+                book.getMedia(), context.getMemoryBudget(), chunkSize, pdfThreads)) {
+            try (Metrics.Timer timer = metrics.phase(Metrics.HTML)) {
+                createHtml(writeHtml ? htmlFile : null, pdfRenderer, book);
+            }
+            if (writeHtml) {
+                htmlManifest.save(VERSION, htmlFile, checksums);
+                System.out.println("Generated " + htmlFile.getAbsolutePath());
+            }
+            try (Metrics.Timer timer = metrics.phase(Metrics.PDF)) {
+                pdfRenderer.render(pdfFile);
+            }
+            pdfManifest.save(VERSION, pdfFile, checksums);
+            System.out.println("Generated " + pdfFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Processes the chapters of the book, writing them to the HTML file and handing them to the PDF renderer. Any of
+     * them can be null.
+     */
+    void createHtml(File html, ChunkedPdfRenderer pdfRenderer, BookData data)
+            throws IOException, InterruptedException {
+        List<ResourceItem> chapters = new ArrayList<>();
+        chapters.add(data.getCoverPage());
+        for (ResourceItem item : data.getResources()) {
+            if ("chapter".equals(item.kind)) {
+                chapters.add(item);
+            }
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        MediaLinks htmlImages = html == null ? null : htmlImages(html);
+        MemoryBudget budget = context.getMemoryBudget();
+        BookStylesheet stylesheet = stylesheet(data);
+        // The HTML has a single head, so it gets the inline styles of every chapter
+        String inline = html == null ? "" : inlineStyles(chapters).toCss();
+        // Chapters usually repeat the same inline styles, they are parsed once
+        Map<String, BookStylesheet> inlineStyles = new ConcurrentHashMap<>();
+        Deque<Future<ChapterHtml>> window = new ArrayDeque<>();
+        Deque<MemoryBudget.Permit> permits = new ArrayDeque<>();
+        Iterator<ResourceItem> pending = chapters.iterator();
+        boolean first = true;
+        try (Writer writer = html == null ? Writer.nullWriter()
+                : new BufferedWriter(new OutputStreamWriter(new FileOutputStream(html), UTF_8))) {
+            // Chapters are processed in parallel, but only a window of them is kept in memory to write them in order.
+            // The window is also limited by the memory budget, it only waits for it when it is empty
+            ResourceItem next = null;
+            while (next != null || pending.hasNext() || !window.isEmpty()) {
+                while ((next != null || pending.hasNext()) && window.size() < threads * 2) {
+                    next = next == null ? pending.next() : next;
+                    long bytes = next.content.size() * CHAPTER_FACTOR;
+                    MemoryBudget.Permit permit = window.isEmpty() ? budget.acquire(bytes)
+                            : budget.acquireIfAvailable(bytes);
+                    if (permit == null) {
+                        break;
+                    }
+                    permits.add(permit);
+                    ResourceItem chapter = next;
+                    window.add(executor.submit(() -> processChapter(chapter, data, inlineStyles)));
+                    next = null;
+                }
+                ChapterHtml chapter = window.poll().get();
+                if (first) {
+                    writer.write(head(chapter, data, "<style>\n" + HTML5_BLOCKS + "\n" + inline
+                            + stylesheet.toCss() + "</style>\n"));
+                    if (pdfRenderer != null) {
+                        // Every chunk gets the rules that may match its chapters
+                        boolean prune = context.getBoolean(PDF_CSS_PRUNE_KEY, true);
+                        pdfRenderer.start(head(chapter, data, MediaUserAgent.STYLESHEET_LINK),
+                                BookStylesheet.parse(HTML5_BLOCKS), stylesheet, prune);
+                    }
+                    first = false;
+                }
+                if (htmlImages != null) {
+                    writeMedia(chapter.body, data, htmlImages, writer);
+                    writer.write("\n");
+                }
+                if (pdfRenderer != null) {
+                    pdfRenderer.addChapter(chapter.title, chapter.body, chapter.inlineStyles, chapter.features);
+                }
+                permits.poll().close();
+            }
+            writer.write("</body>\n</html>\n");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            permits.forEach(MemoryBudget.Permit::close);
+        }
+    }
+
+    private String head(ChapterHtml first, BookData data, String style) {
+        StringBuilder head = new StringBuilder();
+        head.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<html");
+        head.append(first.htmlAttributes);
+        head.append(">\n<head>\n<meta charset=\"utf-8\" />\n<title>");
+        head.append(escapeXml(data.getTitleOriginal()));
+        head.append("</title>\n");
+        head.append(style);
+        head.append("</head>\n<body>\n");
+        return head.toString();
+    }
+
+    /**
+     * The style elements of the chapters merged, without the rules repeated across them. Only the head of every
+     * chapter is read and parsed.
+     */
+    static BookStylesheet inlineStyles(List<ResourceItem> chapters) throws IOException {
+        Set<String> styles = new LinkedHashSet<>();
+        for (ResourceItem chapter : chapters) {
+            if (chapter == null || chapter.content == null) {
+                continue;
+            }
+            for (Element style : Jsoup.parse(chapterHead(chapter)).head().getElementsByTag("style")) {
+                styles.add(style.data());
+            }
+        }
+        List<BookStylesheet> sheets = new ArrayList<>();
+        for (String style : styles) {
+            sheets.add(BookStylesheet.parse(style));
+        }
+        return BookStylesheet.merge(sheets);
+    }
+
+    // The chapter until the end of its head, or the whole chapter when it has none
+    private static String chapterHead(ResourceItem chapter) throws IOException {
+        StringBuilder head = new StringBuilder();
+        char[] buffer = new char[8 * 1024];
+        try (Reader reader = new InputStreamReader(chapter.content.openStream(), UTF_8)) {
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                int from = Math.max(0, head.length() - 6);
+                head.append(buffer, 0, read);
+                int end = head.indexOf("</head>", from);
+                if (end == -1) {
+                    end = head.indexOf("</HEAD>", from);
+                }
+                if (end != -1) {
+                    head.setLength(end + "</head>".length());
+                    break;
+                }
+            }
+        }
+        return head.toString();
+    }
+
+    // Every stylesheet of the book in the order of the listing, without the rules repeated across them
+    private BookStylesheet stylesheet(BookData data) throws IOException {
+        List<BookStylesheet> sheets = new ArrayList<>();
+        for (ResourceItem css : data.getStylesheets()) {
+            sheets.add(BookStylesheet.parse(new String(css.content.readAllBytes(), UTF_8)));
+        }
+        if (sheets.isEmpty()) {
+            System.out.println("WARNING: CSS was not found");
+        }
+        return BookStylesheet.merge(sheets);
+    }
+
+    private ChapterHtml processChapter(ResourceItem chapter, BookData data, Map<String, BookStylesheet> inlineStyles)
+            throws IOException {
+        Document document;
+        try (InputStream input = chapter.content.openStream()) {
+            document = Jsoup.parse(input, "UTF-8", "");
+        }
+        document.outputSettings().syntax(Document.OutputSettings.Syntax.xml);
+        document.outputSettings().escapeMode(EscapeMode.xhtml);
+        for (Element element : document.getElementsByAttribute("src")) {
+            String mediaFile = element.attr("src");
+            String[] file = mediaFile.split("/");
+            String fileName = file[file.length - 1];
+            ResourceItem media = data.getMedia().get(fileName);
+            if (media != null) {
+                element.attr("src", MediaUserAgent.uri(media));
+                // Try to avoid PDF conversion issues with the image
+                element.removeAttr("height");
+                element.removeAttr("width");
+                element.removeAttr("style");
+                element.attr("style", "width: 100%; max-width: 600px;");
+            } else {
+                System.out.println("WARNING: " + mediaFile + " was not found");
+            }
+        }
+        // Remove not HTML attribute
+        for (Element element : document.getElementsByAttribute("epub:type")) {
+            element.removeAttr("epub:type");
+        }
+        // Fix href
+        for (Element element : document.getElementsByAttribute("href")) {
+            String hrefVal = element.attr("href");
+            int idx = hrefVal.indexOf("#");
+            if (idx != -1) {
+                hrefVal = hrefVal.substring(idx);
+                element.attr("href", hrefVal);
+            }
+        }
+        StringBuilder styles = new StringBuilder();
+        for (Element style : document.head().getElementsByTag("style")) {
+            styles.append(style.data()).append('\n');
+        }
+        Element root = document.getElementsByTag("html").first();
+        Element heading = document.body().select("h1, h2, h3").first();
+        String title = heading != null ? heading.text() : document.title();
+        Set<String> features = new HashSet<>();
+        BookStylesheet.features(document, features);
+        return new ChapterHtml(root == null ? "" : root.attributes().html(),
+                inlineStyles.computeIfAbsent(styles.toString(), BookStylesheet::parse), features,
+                title.isEmpty() ? chapter.fileName : title, document.body().html());
+    }
+
+    /**
+     * The standalone HTML embeds the images as data URIs when html.inline.images is enabled. They are encoded from
+     * the store straight to the HTML, so no image is kept in memory. Otherwise they are copied once to a folder next
+     * to it.
+     */
+    private MediaLinks htmlImages(File html) {
+        if (context.getBoolean(INLINE_IMAGES_KEY, true)) {
+            return (media, writer) -> {
+                writer.write("data:" + media.mediaType + ";base64,");
+                // Base64 is ASCII, so every byte is a character
+                OutputStream encoder = Base64.getEncoder().wrap(new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        writer.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        writer.write(new String(b, off, len, StandardCharsets.ISO_8859_1));
+                    }
+                });
+                try (InputStream input = media.content.openStream()) {
+                    input.transferTo(encoder);
+                }
+                // Writes the padding, the writer is not closed
+                encoder.close();
+            };
+        }
+        String folderName = html.getName().substring(0, html.getName().lastIndexOf('.')) + "_files";
+        File folder = new File(html.getParentFile(), folderName);
+        Map<String, String> links = new HashMap<>();
+        return (media, writer) -> {
+            String link = links.get(media.fileName);
+            if (link == null) {
+                try (InputStream input = media.content.openStream()) {
+                    folder.mkdirs();
+                    Files.copy(input, new File(folder, media.fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                link = folderName + "/" + URLEncoder.encode(media.fileName, UTF_8).replace("+", "%20");
+                links.put(media.fileName, link);
+            }
+            writer.write(link);
+        };
+    }
+
+    private void writeMedia(String body, BookData data, MediaLinks links, Writer writer) throws IOException {
+        int from = 0;
+        int start;
+        while ((start = body.indexOf(MediaUserAgent.SCHEME, from)) != -1) {
+            int end = body.indexOf('"', start);
+            if (end == -1) {
+                break;
+            }
+            ResourceItem media = data.getMedia().get(MediaUserAgent.fileName(body.substring(start, end)));
+            writer.write(body, from, start - from);
+            if (media == null) {
+                writer.write(body, start, end - start);
+            } else {
+                links.write(media, writer);
+            }
+            from = end;
+        }
+        writer.write(body, from, body.length() - from);
+    }
+
+    // Writes the link to an image of the standalone HTML
+    private interface MediaLinks {
+        void write(ResourceItem media, Writer writer) throws IOException;
+    }
+
+    private String escapeXml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static class ChapterHtml {
+        private final String htmlAttributes;
+        private final BookStylesheet inlineStyles;
+        // Names, classes and ids of the elements of the chapter
+        private final Set<String> features;
+        private final String title;
+        private final String body;
+
+        private ChapterHtml(String htmlAttributes, BookStylesheet inlineStyles, Set<String> features, String title,
+                String body) {
+            this.htmlAttributes = htmlAttributes;
+            this.inlineStyles = inlineStyles;
+            this.features = features;
+            this.title = title;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package es.tododev.ebooks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Local cache of the downloaded resources. Entries are keyed by URL and keep the validators of the response, while
+ * the bodies are stored once by their SHA-256, so an asset shared by many books takes the space of one.
+ *
+ * <pre>
+ * entries/ab/ab12...properties   url, ETag, Last-Modified and object of one URL
+ * objects/cd/cd34...             body of the response
+ * </pre>
+ */
+public class HttpCache {
+
+    private static final String URL = "url";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+    private static final String OBJECT = "object";
+    private final Path entries;
+    private final Path objects;
+    private final Path temp;
+
+    public HttpCache(Path folder) throws IOException {
+        this.entries = folder.resolve("entries");
+        this.objects = folder.resolve("objects");
+        this.temp = folder.resolve("tmp");
+        Files.createDirectories(entries);
+        Files.createDirectories(objects);
+        Files.createDirectories(temp);
+    }
+
+    public Entry lookup(String url) throws IOException {
+        Path file = entryFile(url);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(file)) {
+            properties.load(input);
+        } catch (IOException e) {
+            return null;
+        }
+        Entry entry = new Entry(properties.getProperty(ETAG), properties.getProperty(LAST_MODIFIED),
+                properties.getProperty(OBJECT));
+        if (!url.equals(properties.getProperty(URL)) || entry.object == null
+                || !Files.exists(objectFile(entry.object))) {
+            return null;
+        }
+        return entry;
+    }
+
+    public InputStream open(Entry entry) throws IOException {
+        return Files.newInputStream(objectFile(entry.object));
+    }
+
+    /**
+     * Copies the body in the cache and returns the new entry. Bodies that are already stored are not written again.
+     */
+    public Entry store(String url, String etag, String lastModified, InputStream body) throws IOException {
+        Path download = Files.createTempFile(temp, "body", ".tmp");
+        MessageDigest digest = sha256();
+        try {
+            try (OutputStream out = new DigestOutputStream(Files.newOutputStream(download), digest)) {
+                body.transferTo(out);
+            }
+            String object = hex(digest.digest());
+            Path objectFile = objectFile(object);
+            Files.createDirectories(objectFile.getParent());
+            try {
+                Files.move(download, objectFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // Same content was stored by other resource
+            }
+            Entry entry = new Entry(etag, lastModified, object);
+            writeEntry(url, entry);
+            return entry;
+        } finally {
+            Files.deleteIfExists(download);
+        }
+    }
+
+    private void writeEntry(String url, Entry entry) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(URL, url);
+        properties.setProperty(OBJECT, entry.object);
+        if (entry.etag != null) {
+            properties.setProperty(ETAG, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            properties.setProperty(LAST_MODIFIED, entry.lastModified);
+        }
+        Path file = entryFile(url);
+        Files.createDirectories(file.getParent());
+        Path tempEntry = Files.createTempFile(temp, "entry", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tempEntry)) {
+                properties.store(out, null);
+            }
+            Files.move(tempEntry, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempEntry);
+        }
+    }
+
+    private Path entryFile(String url) {
+        String key = hex(sha256().digest(url.getBytes(StandardCharsets.UTF_8)));
+        return entries.resolve(key.substring(0, 2)).resolve(key + ".properties");
+    }
+
+    private Path objectFile(String object) {
+        return objects.resolve(object.substring(0, 2)).resolve(object);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public static class Entry {
+        final String etag;
+        final String lastModified;
+        final String object;
+
+        Entry(String etag, String lastModified, String object) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.object = object;
+        }
+
+        public String getObject() {
+            return object;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package es.tododev.ebooks;
+
+import java.io.IOException;
+
+/**
+ * The server answered with an error status. The delay of the Retry-After header is kept, when there is one.
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+    private final int status;
+    private final long retryAfterMillis;
+
+    public HttpStatusException(String url, int status, long retryAfterMillis) {
+        super("HTTP " + status + " from " + url);
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Milliseconds the server asked to wait before retrying, or -1.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,175 @@
+package es.tododev.ebooks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Invocation.Builder;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.apache.connector.ApacheHttpClientBuilderConfigurator;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.message.GZipEncoder;
+
+/**
+ * The only HTTP client of the application, shared by all the books. It adds the configured headers to every request,
+ * spaces the requests sent to the same host and revalidates the resources kept in the {@link HttpCache}.
+ */
+public class HttpTransport implements ResourceSource, Closeable {
+
+    private static final String CONNECTOR_KEY = "http.connector";
+    private static final String POOL_MAX_KEY = "http.pool.max";
+    private static final String POOL_PER_HOST_KEY = "http.pool.per.host";
+    private static final String KEEP_ALIVE_KEY = "http.keepalive.seconds";
+    private static final String CONNECT_TIMEOUT_KEY = "http.connect.timeout.seconds";
+    private static final String READ_TIMEOUT_KEY = "http.read.timeout.seconds";
+    private static final String COMPRESSION_KEY = "http.compression";
+    private static final String CACHE_ENABLED_KEY = "cache.enabled";
+    private static final String CACHE_DIR_KEY = "cache.dir";
+    private static final String TEXT_ENCODINGS = "gzip, br";
+    private static final String IDENTITY = "identity";
+    private final Client client;
+    private final Map<String, String> httpHeaders;
+    private final HostRateLimiter rateLimiter;
+    private final boolean compression;
+    private final HttpCache cache;
+
+    public HttpTransport(Context context) throws IOException {
+        this.httpHeaders = context.getHttpHeaders();
+        this.rateLimiter = context.getRateLimiter();
+        this.compression = context.getBoolean(COMPRESSION_KEY, true);
+        this.cache = context.getBoolean(CACHE_ENABLED_KEY, true)
+                ? new HttpCache(Paths.get(context.getProperty(CACHE_DIR_KEY, "cache")))
+                : null;
+        int connectTimeout = context.getInt(CONNECT_TIMEOUT_KEY, 30);
+        int readTimeout = context.getInt(READ_TIMEOUT_KEY, 120);
+        ClientConfig config = new ClientConfig();
+        config.property(ClientProperties.CONNECT_TIMEOUT, (int) TimeUnit.SECONDS.toMillis(connectTimeout));
+        config.property(ClientProperties.READ_TIMEOUT, (int) TimeUnit.SECONDS.toMillis(readTimeout));
+        if ("http2".equalsIgnoreCase(context.getProperty(CONNECTOR_KEY, "apache"))) {
+            config.connectorProvider(new JavaHttpConnectorProvider(Duration.ofSeconds(connectTimeout),
+                    Duration.ofSeconds(readTimeout)));
+        } else {
+            PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(
+                    context.getInt(KEEP_ALIVE_KEY, 60), TimeUnit.SECONDS);
+            pool.setMaxTotal(context.getInt(POOL_MAX_KEY, 64));
+            pool.setDefaultMaxPerRoute(context.getInt(POOL_PER_HOST_KEY, 16));
+            pool.setValidateAfterInactivity((int) TimeUnit.SECONDS.toMillis(10));
+            long keepAlive = TimeUnit.SECONDS.toMillis(context.getInt(KEEP_ALIVE_KEY, 60));
+            config.property(ApacheClientProperties.CONNECTION_MANAGER, pool);
+            // Compression is handled by the registered encoders for all the connectors
+            config.register((ApacheHttpClientBuilderConfigurator) builder -> builder.disableContentCompression()
+                    .setKeepAliveStrategy((response, httpContext) -> keepAlive));
+            config.connectorProvider(new ApacheConnectorProvider());
+        }
+        config.register(GZipEncoder.class);
+        config.register(BrotliDecoder.class);
+        this.client = ClientBuilder.newClient(config);
+    }
+
+    /**
+     * Body of the resource, served from the cache when the server answers 304 Not Modified to the validators of the
+     * cached copy. Error statuses and connection failures are thrown as IOExceptions.
+     */
+    @Override
+    public InputStream open(String url, boolean text) throws IOException, InterruptedException {
+        HttpCache.Entry cached = cache == null ? null : cache.lookup(url);
+        Response response;
+        try {
+            Builder builder = request(url, text);
+            if (cached != null) {
+                if (cached.etag != null) {
+                    builder.header(HttpHeaders.IF_NONE_MATCH, cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    builder.header(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+                }
+            }
+            response = builder.get();
+        } catch (ProcessingException e) {
+            throw new IOException("Cannot get " + url + ": " + e.getMessage(), e);
+        }
+        try {
+            if (cached != null && response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                return cache.open(cached);
+            } else if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                long retryAfter = retryAfterMillis(response.getHeaderString(HttpHeaders.RETRY_AFTER));
+                if (retryAfter > 0) {
+                    rateLimiter.pause(url, retryAfter);
+                }
+                throw new HttpStatusException(url, response.getStatus(), retryAfter);
+            } else if (cache == null) {
+                InputStream body = response.readEntity(InputStream.class);
+                response = null;
+                return body;
+            }
+            try (InputStream body = response.readEntity(InputStream.class)) {
+                HttpCache.Entry entry = cache.store(url, response.getHeaderString(HttpHeaders.ETAG),
+                        response.getHeaderString(HttpHeaders.LAST_MODIFIED), body);
+                return cache.open(entry);
+            }
+        } catch (ProcessingException e) {
+            throw new IOException("Cannot read " + url + ": " + e.getMessage(), e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    // Retry-After is either a number of seconds or a date
+    static long retryAfterMillis(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+    }
+
+    private Builder request(String url, boolean text) throws InterruptedException {
+        rateLimiter.acquire(url);
+        Builder builder = client.target(url).request();
+        for (Entry<String, String> entry : httpHeaders.entrySet()) {
+            builder.header(entry.getKey(), entry.getValue());
+        }
+        builder.header(HttpHeaders.ACCEPT_ENCODING, compression && text ? TEXT_ENCODINGS : IDENTITY);
+        return builder;
+    }
+
+    public static boolean isText(String mediaType) {
+        if (mediaType == null) {
+            return true;
+        }
+        return mediaType.startsWith("text/") || mediaType.contains("xml") || mediaType.contains("json")
+                || mediaType.contains("javascript") || mediaType.contains("svg");
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
@@ -0,0 +1,217 @@
+package es.tododev.ebooks;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Fixes the media type of the images from their content and, when image.max.dimension is set, downscales the JPEG
+ * and PNG images bigger than it. Images are processed by the download threads as they arrive and keep their format
+ * and file name, so the links to them are still valid. It also shrinks the images that are too big for a format.
+ */
+class ImageTranscoder {
+
+    private static final String MAX_DIMENSION_KEY = "image.max.dimension";
+    private static final String QUALITY_KEY = "image.quality";
+    private final int maxDimension;
+    private final float quality;
+    private final MemoryBudget budget;
+
+    ImageTranscoder(Context context) {
+        this.maxDimension = context.getInt(MAX_DIMENSION_KEY, 0);
+        this.quality = context.getInt(QUALITY_KEY, 85) / 100f;
+        this.budget = context.getMemoryBudget();
+    }
+
+    /**
+     * Returns true when the media type of the item was corrected.
+     */
+    boolean transcode(ResourceItem item, ResourceStore store) throws IOException {
+        byte[] header = new byte[12];
+        int read;
+        try (InputStream input = item.content.openStream()) {
+            read = input.readNBytes(header, 0, header.length);
+        }
+        String mediaType = sniff(header, read);
+        boolean fixed = mediaType != null && !mediaType.equals(item.mediaType);
+        if (fixed) {
+            item.mediaType = mediaType;
+        }
+        if (maxDimension <= 0 || !("image/jpeg".equals(mediaType) || "image/png".equals(mediaType))) {
+            return fixed;
+        }
+        byte[] encoded;
+        MemoryBudget.Permit permit = null;
+        try {
+            BufferedImage image;
+            try (InputStream input = item.content.openStream();
+                    ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+                if (!readers.hasNext()) {
+                    return fixed;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(stream, true, true);
+                    // The size is in the header, small images are not decoded
+                    int width = reader.getWidth(0);
+                    int height = reader.getHeight(0);
+                    if (Math.max(width, height) <= maxDimension) {
+                        return fixed;
+                    }
+                    // Decoded and scaled images take up to 4 bytes per pixel
+                    permit = budget.acquireInterruptibly(4L * width * height + 4L * maxDimension * maxDimension);
+                    image = reader.read(0);
+                } finally {
+                    reader.dispose();
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("WARNING: " + item.fileName + " cannot be decoded: " + e.getMessage());
+                return fixed;
+            }
+            String format = "image/jpeg".equals(mediaType) ? "jpeg" : "png";
+            encoded = encode(scale(image, maxDimension, format), format);
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+        }
+        if (encoded.length < item.content.size()) {
+            StoredContent previous = item.content;
+            item.content = store.store(encoded);
+            previous.release();
+        }
+        return fixed;
+    }
+
+    /**
+     * The image downscaled until it is encoded in at most maxBytes, as PNG when it has transparency and as JPEG
+     * otherwise. It is null when the image cannot be decoded or made that small.
+     */
+    byte[] shrink(ResourceItem item, int maxBytes) throws IOException {
+        MemoryBudget.Permit permit = null;
+        try {
+            BufferedImage image;
+            try (InputStream input = item.content.openStream();
+                    ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(stream, true, true);
+                    // The decoded image and the first scaled one
+                    permit = budget.acquireInterruptibly(8L * reader.getWidth(0) * reader.getHeight(0));
+                    image = reader.read(0);
+                } finally {
+                    reader.dispose();
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("WARNING: " + item.fileName + " cannot be decoded: " + e.getMessage());
+                return null;
+            }
+            String format = image.getColorModel().hasAlpha() ? "png" : "jpeg";
+            int dimension = Math.max(image.getWidth(), image.getHeight());
+            for (int attempt = 0; attempt < 8 && dimension >= 16; attempt++) {
+                byte[] encoded = encode(scale(image, dimension, format), format);
+                if (encoded.length <= maxBytes) {
+                    return encoded;
+                }
+                // The encoded size follows the area of the image
+                dimension = (int) (dimension * Math.min(0.9, Math.sqrt((double) maxBytes / encoded.length)));
+            }
+            return null;
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+        }
+    }
+
+    private BufferedImage scale(BufferedImage image, int dimension, String format) {
+        double ratio = (double) dimension / Math.max(image.getWidth(), image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        int type = "png".equals(format) && image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private byte[] encode(BufferedImage image, String format) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpeg".equals(format)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Media type of the image from its first bytes, or null if it is not known.
+     */
+    static String sniff(byte[] header, int length) {
+        if (startsWith(header, length, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        } else if (startsWith(header, length, 0x89, 'P', 'N', 'G')) {
+            return "image/png";
+        } else if (startsWith(header, length, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        } else if (startsWith(header, length, 'R', 'I', 'F', 'F') && length >= 12 && header[8] == 'W'
+                && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+            return "image/webp";
+        } else if (startsWith(header, length, '<', 's', 'v', 'g')
+                || startsWith(header, length, '<', '?', 'x', 'm', 'l')) {
+            return "image/svg+xml";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int... prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if ((header[i] & 0xFF) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,133 @@
+package es.tododev.ebooks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.Configuration;
+
+import org.glassfish.jersey.client.ClientRequest;
+import org.glassfish.jersey.client.ClientResponse;
+import org.glassfish.jersey.client.spi.AsyncConnectorCallback;
+import org.glassfish.jersey.client.spi.Connector;
+import org.glassfish.jersey.client.spi.ConnectorProvider;
+import org.glassfish.jersey.message.internal.Statuses;
+
+/**
+ * Jersey connector on top of java.net.http, which multiplexes the requests to the same host over one HTTP/2
+ * connection when the server supports it.
+ */
+public class JavaHttpConnectorProvider implements ConnectorProvider {
+
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(
+            Arrays.asList("connection", "content-length", "expect", "host", "upgrade"));
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+
+    public JavaHttpConnectorProvider(Duration connectTimeout, Duration readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public Connector getConnector(javax.ws.rs.client.Client client, Configuration runtimeConfig) {
+        HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL).connectTimeout(connectTimeout).build();
+        return new JavaHttpConnector(httpClient);
+    }
+
+    private class JavaHttpConnector implements Connector {
+
+        private final HttpClient httpClient;
+
+        private JavaHttpConnector(HttpClient httpClient) {
+            this.httpClient = httpClient;
+        }
+
+        @Override
+        public ClientResponse apply(ClientRequest request) {
+            try {
+                HttpResponse<InputStream> response = httpClient.send(toHttpRequest(request),
+                        HttpResponse.BodyHandlers.ofInputStream());
+                return toClientResponse(request, response);
+            } catch (IOException e) {
+                throw new ProcessingException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessingException(e);
+            }
+        }
+
+        @Override
+        public Future<?> apply(ClientRequest request, AsyncConnectorCallback callback) {
+            CompletableFuture<HttpResponse<InputStream>> future;
+            try {
+                future = httpClient.sendAsync(toHttpRequest(request), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (IOException e) {
+                callback.failure(e);
+                return CompletableFuture.failedFuture(e);
+            }
+            return future.whenComplete((response, error) -> {
+                if (error != null) {
+                    callback.failure(error);
+                } else {
+                    callback.response(toClientResponse(request, response));
+                }
+            });
+        }
+
+        private HttpRequest toHttpRequest(ClientRequest request) throws IOException {
+            HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+            if (request.hasEntity()) {
+                ByteArrayOutputStream entity = new ByteArrayOutputStream();
+                request.setStreamProvider(contentLength -> entity);
+                request.writeEntity();
+                body = HttpRequest.BodyPublishers.ofByteArray(entity.toByteArray());
+            }
+            HttpRequest.Builder builder = HttpRequest.newBuilder(request.getUri()).timeout(readTimeout)
+                    .method(request.getMethod(), body);
+            for (Map.Entry<String, List<String>> header : request.getStringHeaders().entrySet()) {
+                if (!RESTRICTED_HEADERS.contains(header.getKey().toLowerCase())) {
+                    for (String value : header.getValue()) {
+                        builder.header(header.getKey(), value);
+                    }
+                }
+            }
+            return builder.build();
+        }
+
+        private ClientResponse toClientResponse(ClientRequest request, HttpResponse<InputStream> response) {
+            ClientResponse clientResponse = new ClientResponse(Statuses.from(response.statusCode()), request);
+            for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+                // HTTP/2 pseudo headers like :status are not real headers
+                if (!header.getKey().startsWith(":")) {
+                    clientResponse.getHeaders().addAll(header.getKey(), header.getValue());
+                }
+            }
+            clientResponse.setEntityStream(response.body());
+            return clientResponse;
+        }
+
+        @Override
+        public String getName() {
+            return "java.net.http " + HttpClient.Version.HTTP_2;
+        }
+
+        @Override
+        public void close() {
+            // java.net.http releases its connections when the client is garbage collected
+        }
+    }
+}
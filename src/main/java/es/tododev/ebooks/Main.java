@@ -2,62 +2,162 @@ package es.tododev.ebooks;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.stream.Stream;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Main {
 
-    private static final String BASE_URL_KEY = "base.url";
     private static final String ISBNS_KEY = "isbns";
     private static final String DRM_KEY = "DRM";
+    private static final String FORMATS_KEY = "formats";
+    private static final String ORDER_BY_SIZE_KEY = "books.order.by.size";
+    private static final String METRICS_REPORT_KEY = "metrics.report";
+    private static final String SEARCH_MAX_HITS_KEY = "search.max.hits";
+
+    private static final String DAEMON_ARG = "--daemon";
+    private static final String TRAINING_ARG = "--training-run";
+    private static final String SEARCH_ARG = "--search";
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            System.out.println("Specify the properties file as argument");
+        String mode = args.length > 1 ? args[0] : null;
+        boolean search = SEARCH_ARG.equals(mode) && args.length == 3;
+        boolean valid = args.length == 1 || search
+                || (args.length == 2 && (DAEMON_ARG.equals(mode) || TRAINING_ARG.equals(mode)));
+        if (!valid) {
+            System.out.println("Specify the properties file as argument, after " + DAEMON_ARG
+                    + " to keep running and take the books from the job API, after " + TRAINING_ARG
+                    + " to create the class data archive of the launcher or after " + SEARCH_ARG
+                    + " and followed by the words or \"phrases\" to search in the indexed books");
         } else {
+            String file = args[mode == null ? 0 : 1];
             Properties properties = new Properties();
-            File prop = new File(args[0]);
+            File prop = new File(file);
             if (!prop.exists()) {
-                throw new IllegalArgumentException("File " + args[0] + " does not exist");
+                throw new IllegalArgumentException("File " + file + " does not exist");
             }
-            try (InputStream input = new FileInputStream(args[0])) {
+            try (InputStream input = new FileInputStream(file)) {
                 properties.load(input);
             }
-            Map<String, String> headers = new HashMap<>();
-            for (Object keyObj : properties.keySet()) {
-                String key = (String) keyObj;
-                if (key.startsWith("header.")) {
-                    headers.put(key.replaceFirst("header.", ""), properties.getProperty(key).toString());
+            try (Context context = new Context(properties)) {
+                if (DAEMON_ARG.equals(mode)) {
+                    serve(context, properties);
+                } else if (TRAINING_ARG.equals(mode)) {
+                    new TrainingRun(context, file).execute();
+                } else if (search) {
+                    search(context, args[2]);
+                } else {
+                    run(context, properties);
                 }
             }
-            String baseUrl = properties.getProperty(BASE_URL_KEY).toString();
-            Boolean drm = Boolean.parseBoolean(properties.getProperty(DRM_KEY));
-            List<String> failed = Collections.synchronizedList(new ArrayList<String>());
-            Stream.of(properties.getProperty(ISBNS_KEY).toString().split(",")).parallel().forEach(isbn -> {
-                System.out.println("Processing ISBN: " + isbn);
-                Processor processor;
-                if (drm) {
-                    processor = new AntiDRMProcessor(baseUrl, isbn, headers);
-                } else {
-                    processor = new EpubProcessor(baseUrl, isbn, headers);
+        }
+    }
+
+    // Without formats, DRM chooses between the HTML and PDF or the EPUB
+    private static Set<String> formats(Context context, Properties properties) {
+        boolean drm = Boolean.parseBoolean(properties.getProperty(DRM_KEY));
+        return BookProcessor.formats(context.getProperty(FORMATS_KEY, drm ? "html,pdf" : "epub"));
+    }
+
+    private static void serve(Context context, Properties properties) throws Exception {
+        List<BookJob> jobs;
+        try (BookDaemon daemon = new BookDaemon(context, formats(context, properties),
+                (isbn, formats) -> new BookProcessor(context, isbn, formats))) {
+            // Stopping the JVM waits until the jobs are cancelled and the report is written
+            Thread main = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                daemon.stop();
+                try {
+                    main.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            daemon.await();
+            jobs = daemon.getScheduler().getJobs();
+        }
+        writeReport(context, jobs);
+    }
+
+    private static void run(Context context, Properties properties) throws Exception {
+        Set<String> formats = formats(context, properties);
+        List<String> isbns = new ArrayList<>();
+        for (String isbn : properties.getProperty(ISBNS_KEY).toString().split(",")) {
+            if (!isbn.isBlank()) {
+                isbns.add(isbn.trim());
+            }
+        }
+        if (context.getBoolean(ORDER_BY_SIZE_KEY, true) && isbns.size() > 1) {
+            orderBySize(context, isbns);
+        }
+        try (BookScheduler scheduler = new BookScheduler(context, isbn -> new BookProcessor(context, isbn, formats))) {
+            List<BookJob> jobs;
+            try (ProgressReporter progress = new ProgressReporter(context, scheduler)) {
+                for (String isbn : isbns) {
+                    scheduler.submit(isbn);
                 }
+                jobs = scheduler.awaitAll();
+            }
+            System.out.println(BookScheduler.summary(jobs));
+            writeReport(context, jobs);
+        }
+    }
+
+    private static void search(Context context, String query) throws IOException {
+        long start = System.nanoTime();
+        try (SearchIndex index = new SearchIndex(SearchIndexWriter.folder(context).toPath())) {
+            long opened = System.nanoTime();
+            List<SearchIndex.Hit> hits = index.search(query, context.getInt(SEARCH_MAX_HITS_KEY, 50));
+            long searched = System.nanoTime();
+            for (SearchIndex.Hit hit : hits) {
+                System.out.println(hit);
+            }
+            System.out.println(String.format("%d chapters found in %d books, opened in %.1f ms and searched in %.1f ms",
+                    hits.size(), index.getBooks(), (opened - start) / 1e6, (searched - opened) / 1e6));
+        }
+    }
+
+    private static void writeReport(Context context, List<BookJob> jobs) throws IOException {
+        File report = new File(context.getProperty(METRICS_REPORT_KEY, "books/report.json"));
+        context.getMetrics().writeReport(report, jobs);
+        System.out.println("Report written in " + report.getAbsolutePath());
+    }
+
+    // Biggest books first, so they do not end up running alone at the end of the batch
+    private static void orderBySize(Context context, List<String> isbns) throws InterruptedException {
+        Map<String, Long> sizes = new ConcurrentHashMap<>();
+        List<Callable<Void>> probes = new ArrayList<>();
+        for (String isbn : isbns) {
+            probes.add(() -> {
                 try {
-                    processor.execute();
+                    sizes.put(isbn, BookData.probeFileCount(context, isbn));
+                } catch (InterruptedException e) {
+                    throw e;
                 } catch (Exception e) {
-                    e.printStackTrace();
-                    failed.add(isbn);
+                    System.out.println("WARNING: Cannot get the size of " + isbn + ": " + e);
+                    sizes.put(isbn, -1L);
                 }
+                return null;
             });
-            if (!failed.isEmpty()) {
-                System.out.println("Errors in: " + failed);
-            }
         }
+        // As many books are probed at the same time as they are processed
+        ExecutorService executor = Executors.newFixedThreadPool(BookScheduler.concurrency(context));
+        try {
+            executor.invokeAll(probes);
+        } finally {
+            executor.shutdownNow();
+        }
+        isbns.sort(Comparator.comparing(sizes::get, Comparator.reverseOrder()));
+        System.out.println("Books ordered by number of files: " + sizes);
     }
 
 }
@@ -0,0 +1,88 @@
+package es.tododev.ebooks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Rewrites the src="..." values of a chapter to the relative path of the media they point to, in one pass over the
+ * bytes. The file name is looked up literally in the media index, values without media are copied as they are.
+ */
+class MediaLinkRewriter {
+
+    private static final byte[] SRC = "src=\"".getBytes(StandardCharsets.US_ASCII);
+    private static final int QUOTE = '"';
+    private final Map<String, ResourceItem> media;
+
+    MediaLinkRewriter(Map<String, ResourceItem> media) {
+        this.media = media;
+    }
+
+    /**
+     * Returns the media found in the chapter, in the order they appear.
+     */
+    List<ResourceItem> rewrite(ResourceItem chapter, InputStream input, OutputStream output) throws IOException {
+        List<ResourceItem> found = new ArrayList<>();
+        ByteArrayOutputStream value = new ByteArrayOutputStream(128);
+        byte[] buffer = new byte[16 * 1024];
+        int matched = 0;
+        boolean inValue = false;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            int copyFrom = 0;
+            for (int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                if (inValue) {
+                    if (b == QUOTE) {
+                        writeValue(chapter, value.toByteArray(), output, found);
+                        value.reset();
+                        inValue = false;
+                        copyFrom = i;
+                    } else {
+                        value.write(b);
+                    }
+                } else if (b == SRC[matched]) {
+                    matched++;
+                    if (matched == SRC.length) {
+                        output.write(buffer, copyFrom, i + 1 - copyFrom);
+                        copyFrom = i + 1;
+                        matched = 0;
+                        inValue = true;
+                    }
+                } else {
+                    matched = b == SRC[0] ? 1 : 0;
+                }
+            }
+            if (!inValue) {
+                output.write(buffer, copyFrom, read - copyFrom);
+            }
+        }
+        if (inValue) {
+            // Not closed attribute, keep it as it was
+            value.writeTo(output);
+        }
+        return found;
+    }
+
+    private void writeValue(ResourceItem chapter, byte[] value, OutputStream output, List<ResourceItem> found)
+            throws IOException {
+        String fileNameWithPaths = new String(value, StandardCharsets.UTF_8);
+        String fileName = fileNameWithPaths.substring(fileNameWithPaths.lastIndexOf('/') + 1);
+        ResourceItem image = media.get(fileName);
+        if (image != null) {
+            String newImage = ResourceItem.relativize(chapter, image) + image.fileName;
+            output.write(newImage.getBytes(StandardCharsets.UTF_8));
+            found.add(image);
+        } else {
+            System.out.println("Warning: No image found for " + fileName + " in page " + chapter.fullPath);
+            output.write(value);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package es.tododev.ebooks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.xhtmlrenderer.pdf.ITextOutputDevice;
+import org.xhtmlrenderer.pdf.ITextUserAgent;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Serves the media of the book to Flying Saucer. Documents reference them as ebook-media:file-name, so the image
+ * bytes are read straight from the book instead of decoding base64 data URIs. Every image is decoded once per
+ * renderer, the parent class caches it. The stylesheet of the document is served the same way.
+ */
+public class MediaUserAgent extends ITextUserAgent {
+
+    static final String SCHEME = "ebook-media:";
+    static final String STYLESHEET_URI = "ebook-style:book.css";
+    static final String STYLESHEET_LINK = "<link rel=\"stylesheet\" type=\"text/css\" href=\"" + STYLESHEET_URI
+            + "\" />\n";
+    private final Map<String, ResourceItem> media;
+    private final String stylesheet;
+
+    public MediaUserAgent(ITextOutputDevice outputDevice, Map<String, ResourceItem> media, String stylesheet) {
+        super(outputDevice);
+        this.media = media;
+        this.stylesheet = stylesheet;
+    }
+
+    public static String uri(ResourceItem item) {
+        return SCHEME + URLEncoder.encode(item.fileName, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * File name of the media referenced by the URI, or null if it is not a media URI.
+     */
+    public static String fileName(String uri) {
+        if (uri == null || !uri.startsWith(SCHEME)) {
+            return null;
+        }
+        return URLDecoder.decode(uri.substring(SCHEME.length()), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String resolveURI(String uri) {
+        if (fileName(uri) != null || STYLESHEET_URI.equals(uri)) {
+            return uri;
+        }
+        return super.resolveURI(uri);
+    }
+
+    @Override
+    protected InputStream resolveAndOpenStream(String uri) {
+        if (STYLESHEET_URI.equals(uri)) {
+            return new ByteArrayInputStream(stylesheet.getBytes(StandardCharsets.UTF_8));
+        }
+        String fileName = fileName(uri);
+        if (fileName == null) {
+            return super.resolveAndOpenStream(uri);
+        }
+        ResourceItem item = media.get(fileName);
+        if (item == null) {
+            System.out.println("WARNING: " + fileName + " was not found");
+            return null;
+        }
+        try {
+            return item.content.openStream();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package es.tododev.ebooks;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Heap shared by all the books. It is used in two ways:
+ * <ul>
+ * <li>Resident: resources kept in memory until their book is closed. They never block, when there is no room left
+ * they are stored somewhere else.</li>
+ * <li>In flight: buffers of a download or a render stage that are released when the stage finishes. They wait until
+ * there is room, so the books slow down instead of running out of memory.</li>
+ * </ul>
+ * Resident memory cannot take the reserve, so the stages in flight always finish.
+ */
+public class MemoryBudget {
+
+    private final long limit;
+    private final long reserve;
+    private long resident;
+    private long inFlight;
+
+    public MemoryBudget(long limit) {
+        this(limit, limit / 4);
+    }
+
+    public MemoryBudget(long limit, long reserve) {
+        this.limit = limit;
+        this.reserve = Math.max(1, Math.min(reserve, limit));
+    }
+
+    public synchronized boolean tryAcquire(long bytes) {
+        if (resident + bytes > limit - reserve || resident + inFlight + bytes > limit) {
+            return false;
+        }
+        resident += bytes;
+        return true;
+    }
+
+    public synchronized void release(long bytes) {
+        resident -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the bytes can be buffered. Requests bigger than the reserve only take the reserve, they could never
+     * be satisfied otherwise.
+     */
+    public Permit acquire(long bytes) throws InterruptedException {
+        long amount = Math.max(0, Math.min(bytes, reserve));
+        synchronized (this) {
+            while (resident + inFlight + amount > limit) {
+                wait();
+            }
+            inFlight += amount;
+        }
+        return new Permit(amount);
+    }
+
+    /**
+     * Like {@link #acquire(long)}, but it returns null instead of waiting. Stages that already hold permits must use
+     * it, two of them waiting for each other would never finish.
+     */
+    public synchronized Permit acquireIfAvailable(long bytes) {
+        long amount = Math.max(0, Math.min(bytes, reserve));
+        if (resident + inFlight + amount > limit) {
+            return null;
+        }
+        inFlight += amount;
+        return new Permit(amount);
+    }
+
+    /**
+     * Like {@link #acquire(long)}, for stages that can only throw IOExceptions. The thread keeps its interrupted
+     * flag.
+     */
+    public Permit acquireInterruptibly(long bytes) throws InterruptedIOException {
+        try {
+            return acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + bytes + " bytes of memory");
+        }
+    }
+
+    private synchronized void releaseInFlight(long bytes) {
+        inFlight -= bytes;
+        notifyAll();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public synchronized long getUsed() {
+        return resident;
+    }
+
+    public synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    public class Permit implements AutoCloseable {
+        private long bytes;
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (bytes > 0) {
+                releaseInFlight(bytes);
+                bytes = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package es.tododev.ebooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counters of the run: time spent in every phase of the books, downloaded bytes, requests and a histogram of the
+ * download latency of the resources. They are cheap to update from any thread. Phases and downloads are also emitted
+ * as JFR events, that are recorded when the JVM runs with -XX:StartFlightRecording.
+ */
+public class Metrics {
+
+    static final String FETCH = "fetch";
+    static final String REWRITE = "rewrite";
+    static final String HTML = "html";
+    static final String PDF = "pdf";
+    static final String EPUB = "epub";
+    static final String INDEX = "index";
+    static final String MOBI = "mobi";
+    // Upper bounds in milliseconds of the latency buckets, the last bucket has no bound
+    private static final long[] BUCKETS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<String, BookMetrics> books = new ConcurrentHashMap<>();
+
+    public BookMetrics book(String isbn) {
+        return books.computeIfAbsent(isbn, BookMetrics::new);
+    }
+
+    /**
+     * Starts the metrics of the book again, for a book that is processed again by a long running scheduler.
+     */
+    public BookMetrics reset(String isbn) {
+        BookMetrics book = new BookMetrics(isbn);
+        books.put(isbn, book);
+        return book;
+    }
+
+    public void forget(String isbn) {
+        books.remove(isbn);
+    }
+
+    public Collection<BookMetrics> getBooks() {
+        return books.values();
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Writes the metrics of every book together with the result of its job.
+     */
+    public void writeReport(File file, List<BookJob> jobs) throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("start", startMillis);
+        report.put("durationMillis", System.currentTimeMillis() - startMillis);
+        List<Object> entries = new ArrayList<>();
+        long bytes = 0;
+        long requests = 0;
+        for (BookJob job : jobs) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("isbn", job.getIsbn());
+            entry.put("status", job.getStatus());
+            entry.put("durationMillis", job.getDurationMillis());
+            entry.put("error", job.getError());
+            Map<String, Object> metrics = job.getMetrics();
+            if (!metrics.isEmpty()) {
+                entry.putAll(metrics);
+                bytes += (Long) metrics.get("bytes");
+                requests += (Long) metrics.get("requests");
+            }
+            entries.add(entry);
+        }
+        report.put("bytes", bytes);
+        report.put("requests", requests);
+        report.put("books", entries);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, report);
+    }
+
+    public static class BookMetrics {
+        private final String isbn;
+        private final Map<String, LongAdder> phases = new ConcurrentHashMap<>();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder downloaded = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder placeholders = new LongAdder();
+        private final LongAdder mediaTypesFixed = new LongAdder();
+        private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS.length + 1);
+        private volatile long expected = -1;
+        private final LongAccumulator maxLatencyMillis = new LongAccumulator(Math::max, 0);
+
+        private BookMetrics(String isbn) {
+            this.isbn = isbn;
+        }
+
+        /**
+         * Times a phase until the returned timer is closed.
+         */
+        public Timer phase(String name) {
+            PhaseEvent event = new PhaseEvent();
+            event.isbn = isbn;
+            event.phase = name;
+            event.begin();
+            long start = System.nanoTime();
+            return () -> {
+                phases.computeIfAbsent(name, key -> new LongAdder()).add((System.nanoTime() - start) / 1_000_000);
+                event.commit();
+            };
+        }
+
+        /**
+         * Request that is not a resource of the book, like the pages of the listing.
+         */
+        public void request() {
+            requests.increment();
+        }
+
+        public void downloaded(String url, String kind, long size, long nanos) {
+            long millis = nanos / 1_000_000;
+            requests.increment();
+            downloaded.increment();
+            bytes.add(size);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+                bucket++;
+            }
+            latencies.incrementAndGet(bucket);
+            maxLatencyMillis.accumulate(millis);
+            DownloadEvent event = new DownloadEvent();
+            if (event.shouldCommit()) {
+                event.isbn = isbn;
+                event.url = url;
+                event.kind = kind;
+                event.bytes = size;
+                event.latencyMillis = millis;
+                event.commit();
+            }
+        }
+
+        public void retry() {
+            retries.increment();
+        }
+
+        /**
+         * Resource that could not be downloaded and was replaced by a placeholder.
+         */
+        public void placeholder() {
+            placeholders.increment();
+        }
+
+        /**
+         * Image whose media type in the listing did not match its content.
+         */
+        public void mediaTypeFixed() {
+            mediaTypesFixed.increment();
+        }
+
+        /**
+         * Number of resources the listing reports, used to estimate the remaining time.
+         */
+        public void expect(long resources) {
+            this.expected = resources;
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        public long getExpected() {
+            return expected;
+        }
+
+        public long getDownloaded() {
+            return downloaded.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            Map<String, Long> phaseMillis = new LinkedHashMap<>();
+            for (String phase : new String[] { FETCH, REWRITE, HTML, PDF, EPUB, MOBI, INDEX }) {
+                LongAdder millis = phases.get(phase);
+                if (millis != null) {
+                    phaseMillis.put(phase, millis.sum());
+                }
+            }
+            map.put("phasesMillis", phaseMillis);
+            map.put("bytes", bytes.sum());
+            map.put("requests", requests.sum());
+            map.put("resources", downloaded.sum());
+            map.put("retries", retries.sum());
+            map.put("placeholders", placeholders.sum());
+            map.put("mediaTypesFixed", mediaTypesFixed.sum());
+            Map<String, Long> histogram = new LinkedHashMap<>();
+            long total = 0;
+            for (int i = 0; i < latencies.length(); i++) {
+                total += latencies.get(i);
+                histogram.put(i < BUCKETS.length ? "<=" + BUCKETS[i] : ">" + BUCKETS[BUCKETS.length - 1],
+                        latencies.get(i));
+            }
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put("p50", percentile(0.5, total));
+            latency.put("p90", percentile(0.9, total));
+            latency.put("p99", percentile(0.99, total));
+            latency.put("max", maxLatencyMillis.get());
+            latency.put("histogram", histogram);
+            map.put("latencyMillis", latency);
+            return map;
+        }
+
+        // Upper bound of the bucket that contains the percentile
+        private long percentile(double percentile, long total) {
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                seen += latencies.get(i);
+                if (seen >= rank) {
+                    return Math.min(BUCKETS[i], maxLatencyMillis.get());
+                }
+            }
+            return maxLatencyMillis.get();
+        }
+    }
+
+    public interface Timer extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    @Name("es.tododev.ebooks.Phase")
+    @Label("Book Phase")
+    @Category("Ebooks")
+    static class PhaseEvent extends Event {
+        @Label("ISBN")
+        String isbn;
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("es.tododev.ebooks.Download")
+    @Label("Resource Download")
+    @Category("Ebooks")
+    static class DownloadEvent extends Event {
+        @Label("ISBN")
+        String isbn;
+        @Label("URL")
+        String url;
+        @Label("Kind")
+        String kind;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Latency (ms)")
+        long latencyMillis;
+    }
+}
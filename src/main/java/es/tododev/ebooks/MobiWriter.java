@@ -0,0 +1,677 @@
+package es.tododev.ebooks;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Writes a Mobipocket book, the format that every Kindle reads, without an external converter. The chapters are
+ * joined in one HTML document with the links replaced by byte positions, followed by a table of contents made from
+ * the NCX. The document is written to a temporary file first, because the links point forward, and then it is copied
+ * in records of 4 KB to the book together with the images, so neither of them is kept in memory.
+ * <p>
+ * Mobipocket only understands basic HTML, so stylesheets, classes and inline styles are dropped.
+ */
+public class MobiWriter implements FormatWriter {
+
+    private static final String BOOKS_FOLDER = "books/";
+    // Increase it when the generated book changes, so existing books are generated again
+    static final String VERSION = "2";
+    private static final String ARTIFACT = "mobi";
+    private static final int RECORD_SIZE = 4096;
+    private static final int MOBI_HEADER_LENGTH = 0xE8;
+    private static final int NO_RECORD = 0xFFFFFFFF;
+    // Kindle rejects the books with bigger image records, bigger images are downscaled
+    static final int MAX_IMAGE_RECORD = 127 * 1024;
+    private static final Set<String> IMAGE_TYPES = new HashSet<>(
+            Arrays.asList("image/jpeg", "image/gif", "image/png", "image/bmp"));
+    // Removed with their content
+    private static final String DROPPED = "head, script, style, svg, video, audio, object, iframe, noscript";
+    private static final Set<String> HTML5_BLOCKS = new HashSet<>(Arrays.asList("section", "article", "nav",
+            "aside", "header", "footer", "main", "figure", "figcaption", "details", "summary"));
+    private static final Set<String> VOID_ELEMENTS = new HashSet<>(Arrays.asList("br", "hr", "img"));
+    private static final Set<String> ATTRIBUTES = new HashSet<>(Arrays.asList("align", "valign", "colspan",
+            "rowspan", "alt", "width", "height", "start", "type"));
+    private static final byte[] FLIS = { 'F', 'L', 'I', 'S', 0, 0, 0, 8, 0, 65, 0, 0, 0, 0, 0, 0, -1, -1, -1, -1, 0,
+            1, 0, 3, 0, 0, 0, 3, 0, 0, 0, 1, -1, -1, -1, -1 };
+    private static final byte[] EOF = { (byte) 0xE9, (byte) 0x8E, '\r', '\n' };
+    private final Context context;
+    private final String isbn;
+    private final BookManifest manifest;
+    private final ImageTranscoder transcoder;
+
+    public MobiWriter(Context context, String isbn, Set<String> formats) throws IOException {
+        this.context = context;
+        this.isbn = isbn;
+        this.manifest = BookManifest.load(context, isbn, ARTIFACT);
+        this.transcoder = new ImageTranscoder(context);
+    }
+
+    @Override
+    public boolean isUpToDate(String bookName, String listing) {
+        return manifest.isUpToDate(VERSION, file(bookName), listing);
+    }
+
+    private File file(String bookName) {
+        return new File(BOOKS_FOLDER + isbn + "-" + bookName + ".mobi");
+    }
+
+    @Override
+    public void write(BookData book, Map<String, String> checksums) throws IOException {
+        File mobi = file(book.getBookName());
+        if (manifest.isUpToDate(VERSION, mobi, checksums)) {
+            System.out.println("Up to date " + mobi.getAbsolutePath());
+            return;
+        }
+        try (Metrics.Timer timer = context.getMetrics().book(isbn).phase(Metrics.MOBI)) {
+            write(book, mobi);
+            System.out.println("Generated " + mobi.getAbsolutePath());
+        }
+        manifest.save(VERSION, mobi, checksums);
+    }
+
+    void write(BookData book, File mobi) throws IOException {
+        mobi.getAbsoluteFile().getParentFile().mkdirs();
+        Path folder = mobi.getAbsoluteFile().getParentFile().toPath();
+        Path text = Files.createTempFile(folder, isbn + "-", ".html.tmp");
+        Path temp = Files.createTempFile(folder, isbn + "-", ".tmp");
+        Map<String, Path> shrunk = new HashMap<>();
+        try {
+            Map<String, Integer> images = images(book, folder, shrunk);
+            long length;
+            try (TextWriter writer = new TextWriter(text, images)) {
+                writer.document(book);
+                length = writer.length();
+            }
+            writeBook(book, temp, text, length, images, shrunk);
+            Files.move(temp, mobi.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(text);
+            Files.deleteIfExists(temp);
+            for (Path image : shrunk.values()) {
+                Files.deleteIfExists(image);
+            }
+        }
+    }
+
+    /**
+     * Image records by file name, numbered from 1 in the order they are written. The cover goes first. Images bigger
+     * than a record are downscaled to temporary files of the folder, or left out when that is not possible.
+     */
+    private Map<String, Integer> images(BookData book, Path folder, Map<String, Path> shrunk) throws IOException {
+        List<ResourceItem> candidates = new ArrayList<>();
+        candidates.add(book.getCoverImage());
+        candidates.addAll(book.getMedia().values());
+        Map<String, Integer> images = new LinkedHashMap<>();
+        for (ResourceItem image : candidates) {
+            if (image == null || !isImage(image) || images.containsKey(image.fileName)) {
+                continue;
+            }
+            if (image.content.size() > MAX_IMAGE_RECORD) {
+                byte[] bytes = transcoder.shrink(image, MAX_IMAGE_RECORD);
+                if (bytes == null) {
+                    System.out.println("WARNING: " + image.fileName + " is too big for Mobipocket and it is left out");
+                    continue;
+                }
+                Path file = Files.createTempFile(folder, isbn + "-", ".img.tmp");
+                shrunk.put(image.fileName, file);
+                Files.write(file, bytes);
+            }
+            images.put(image.fileName, images.size() + 1);
+        }
+        return images;
+    }
+
+    private static boolean isImage(ResourceItem item) {
+        return item.content != null && item.mediaType != null && IMAGE_TYPES.contains(item.mediaType);
+    }
+
+    private void writeBook(BookData book, Path file, Path text, long length, Map<String, Integer> images,
+            Map<String, Path> shrunk) throws IOException {
+        int textRecords = (int) Math.max(1, (length + RECORD_SIZE - 1) / RECORD_SIZE);
+        int firstImage = textRecords + 1;
+        int flis = firstImage + images.size();
+        int records = flis + 3;
+        byte[] header = header(book, length, textRecords, firstImage, flis, images);
+        int headerSize = 78 + records * 8 + 2;
+        int[] offsets = new int[records];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.position(headerSize);
+            OutputStream output = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            CountingOutput out = new CountingOutput(output, headerSize);
+            int record = 0;
+            offsets[record++] = out.count;
+            out.write(header);
+            try (RandomAccessFile input = new RandomAccessFile(text.toFile(), "r")) {
+                byte[] buffer = new byte[RECORD_SIZE + 3];
+                for (long start = 0; start < length || record == 1; start += RECORD_SIZE) {
+                    offsets[record++] = out.count;
+                    int size = (int) Math.min(RECORD_SIZE, length - start);
+                    input.seek(start);
+                    input.readFully(buffer, 0, size);
+                    int overlap = overlap(buffer, size);
+                    input.readFully(buffer, size, overlap);
+                    out.write(buffer, 0, size + overlap);
+                    // Trailing entry with the bytes of the last character that continue in the next record
+                    out.write(new byte[] { (byte) overlap }, 0, 1);
+                }
+            }
+            for (String fileName : images.keySet()) {
+                offsets[record++] = out.count;
+                if (shrunk.containsKey(fileName)) {
+                    Files.copy(shrunk.get(fileName), out);
+                    continue;
+                }
+                ResourceItem image = book.getMedia().getOrDefault(fileName, book.getCoverImage());
+                try (InputStream input = image.content.openStream()) {
+                    input.transferTo(out);
+                }
+            }
+            offsets[record++] = out.count;
+            out.write(FLIS);
+            offsets[record++] = out.count;
+            out.write(fcis(length));
+            offsets[record++] = out.count;
+            out.write(EOF);
+            output.flush();
+            channel.write(ByteBuffer.wrap(palmDatabase(book, offsets)), 0);
+        }
+    }
+
+    private static String coverName(BookData book) {
+        return book.getCoverImage() == null ? null : book.getCoverImage().fileName;
+    }
+
+    // Bytes after the end of the record that belong to its last character
+    static int overlap(byte[] record, int size) {
+        for (int i = size - 1; i >= Math.max(0, size - 4); i--) {
+            int b = record[i] & 0xFF;
+            if ((b & 0xC0) != 0x80) {
+                int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+                return Math.max(0, i + length - size);
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] palmDatabase(BookData book, int[] offsets) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] name = new byte[32];
+        String title = book.getBookName().replaceAll("[^A-Za-z0-9]+", "_");
+        byte[] ascii = title.substring(0, Math.min(31, title.length())).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(ascii, 0, name, 0, ascii.length);
+        out.write(name);
+        int now = (int) (System.currentTimeMillis() / 1000);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeInt(now);
+        out.writeInt(now);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeBytes("BOOK");
+        out.writeBytes("MOBI");
+        out.writeInt(offsets.length * 2 - 1);
+        out.writeInt(0);
+        out.writeShort(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            out.writeInt(offsets[i]);
+            // Attributes and unique id of the record
+            out.writeInt(i * 2);
+        }
+        out.writeShort(0);
+        return bytes.toByteArray();
+    }
+
+    // PalmDOC header, MOBI header, EXTH header with the metadata and the full title
+    private byte[] header(BookData book, long length, int textRecords, int firstImage, int flis,
+            Map<String, Integer> images) throws IOException {
+        ByteArrayOutputStream exthRecords = new ByteArrayOutputStream();
+        int exthCount = 0;
+        Map<String, List<String>> metadata = metadata(book);
+        for (Map.Entry<String, List<String>> entry : metadata.entrySet()) {
+            for (String value : entry.getValue()) {
+                exthRecord(exthRecords, Integer.parseInt(entry.getKey()), value.getBytes(StandardCharsets.UTF_8));
+                exthCount++;
+            }
+        }
+        Integer cover = coverName(book) == null ? null : images.get(coverName(book));
+        if (cover != null) {
+            // Offsets from the first image record
+            exthRecord(exthRecords, 201, ByteBuffer.allocate(4).putInt(cover - 1).array());
+            exthRecord(exthRecords, 202, ByteBuffer.allocate(4).putInt(cover - 1).array());
+            exthRecord(exthRecords, 203, ByteBuffer.allocate(4).putInt(0).array());
+            exthCount += 3;
+        }
+        int exthLength = 12 + exthRecords.size();
+        int exthPadding = (4 - exthLength % 4) % 4;
+        byte[] title = book.getTitleOriginal().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // PalmDOC header, the text is not compressed
+        out.writeShort(1);
+        out.writeShort(0);
+        out.writeInt((int) length);
+        out.writeShort(textRecords);
+        out.writeShort(RECORD_SIZE);
+        out.writeShort(0);
+        out.writeShort(0);
+        // MOBI header
+        out.writeBytes("MOBI");
+        out.writeInt(MOBI_HEADER_LENGTH);
+        out.writeInt(2);
+        out.writeInt(65001);
+        out.writeInt(isbn.hashCode());
+        out.writeInt(6);
+        for (int i = 0; i < 10; i++) {
+            // Orthographic, inflection, names, keys and extra indexes
+            out.writeInt(NO_RECORD);
+        }
+        out.writeInt(firstImage);
+        out.writeInt(16 + MOBI_HEADER_LENGTH + exthLength + exthPadding);
+        out.writeInt(title.length);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(6);
+        out.writeInt(images.isEmpty() ? NO_RECORD : firstImage);
+        out.write(new byte[16]);
+        out.writeInt(0x40);
+        out.write(new byte[32]);
+        out.writeInt(NO_RECORD);
+        // No DRM
+        out.writeInt(NO_RECORD);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.write(new byte[8]);
+        out.writeShort(1);
+        out.writeShort(flis - 1);
+        out.writeInt(1);
+        out.writeInt(flis + 1);
+        out.writeInt(1);
+        out.writeInt(flis);
+        out.writeInt(1);
+        out.write(new byte[8]);
+        out.writeInt(NO_RECORD);
+        out.writeInt(0);
+        out.writeInt(NO_RECORD);
+        out.writeInt(NO_RECORD);
+        // Text records end with the bytes of a character split between records
+        out.writeInt(1);
+        out.writeInt(NO_RECORD);
+        // EXTH header
+        out.writeBytes("EXTH");
+        out.writeInt(exthLength);
+        out.writeInt(exthCount);
+        exthRecords.writeTo(out);
+        out.write(new byte[exthPadding]);
+        out.write(title);
+        out.write(new byte[2 + (4 - (title.length + 2) % 4) % 4]);
+        return bytes.toByteArray();
+    }
+
+    private static void exthRecord(ByteArrayOutputStream records, int type, byte[] data) throws IOException {
+        DataOutputStream out = new DataOutputStream(records);
+        out.writeInt(type);
+        out.writeInt(data.length + 8);
+        out.write(data);
+    }
+
+    // EXTH records of the package document: authors, publisher, description, ISBN, date, updated title and language
+    private Map<String, List<String>> metadata(BookData book) throws IOException {
+        Map<String, List<String>> metadata = new LinkedHashMap<>();
+        ResourceItem opf = book.getOpfResource();
+        if (opf != null && opf.content != null) {
+            Document document;
+            try (InputStream input = opf.content.openStream()) {
+                document = Jsoup.parse(input, "UTF-8", "", Parser.xmlParser());
+            }
+            String[][] fields = { { "100", "dc|creator" }, { "101", "dc|publisher" }, { "103", "dc|description" },
+                    { "106", "dc|date" }, { "524", "dc|language" } };
+            for (String[] field : fields) {
+                for (Element element : document.select(field[1])) {
+                    if (!element.text().isBlank()) {
+                        metadata.computeIfAbsent(field[0], key -> new ArrayList<>()).add(element.text().trim());
+                    }
+                }
+            }
+        }
+        metadata.put("104", Arrays.asList(isbn));
+        metadata.put("503", Arrays.asList(book.getTitleOriginal()));
+        return metadata;
+    }
+
+    private static byte[] fcis(long length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("FCIS");
+        out.writeInt(20);
+        out.writeInt(16);
+        out.writeInt(1);
+        out.writeInt(0);
+        out.writeInt((int) length);
+        out.writeInt(0);
+        out.writeInt(32);
+        out.writeInt(8);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeInt(0);
+        return bytes.toByteArray();
+    }
+
+    private static class CountingOutput extends OutputStream {
+        private final OutputStream output;
+        private int count;
+
+        private CountingOutput(OutputStream output, int count) {
+            this.output = output;
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            output.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * The HTML document of the book. Links are written as filepos attributes with a placeholder of 10 digits, which is
+     * replaced with the position of the target once the whole document is written.
+     */
+    private static class TextWriter implements AutoCloseable {
+        private static final String PLACEHOLDER = "0000000000";
+        private static final String TOC = "#toc";
+        private static final String START = "#start";
+        private final Path file;
+        private final Map<String, Integer> images;
+        private final CountingOutput out;
+        // Positions of the chapters and the element ids, as file or file#id
+        private final Map<String, Long> targets = new HashMap<>();
+        private final List<Long> linkPositions = new ArrayList<>();
+        private final List<String> linkTargets = new ArrayList<>();
+        private final List<String[]> chapterTitles = new ArrayList<>();
+        private long length = -1;
+
+        private TextWriter(Path file, Map<String, Integer> images) throws IOException {
+            this.file = file;
+            this.images = images;
+            this.out = new CountingOutput(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024), 0);
+        }
+
+        private void document(BookData book) throws IOException {
+            write("<html><head><guide><reference type=\"toc\" title=\"Table of Contents\" ");
+            link(TOC);
+            write(" /><reference type=\"text\" title=\"Start\" ");
+            link(START);
+            write(" /></guide></head><body>");
+            List<ResourceItem> chapters = new ArrayList<>();
+            chapters.add(book.getCoverPage());
+            for (ResourceItem item : book.getResources()) {
+                if ("chapter".equals(item.kind)) {
+                    chapters.add(item);
+                }
+            }
+            for (ResourceItem chapter : chapters) {
+                if (chapter != null && chapter.content != null) {
+                    if (chapter != book.getCoverPage()) {
+                        targets.putIfAbsent(START, (long) out.count);
+                    }
+                    chapter(chapter);
+                    write("<mbp:pagebreak/>");
+                }
+            }
+            targets.putIfAbsent(START, 0L);
+            targets.put(TOC, (long) out.count);
+            toc(book);
+            write("</body></html>");
+            out.output.flush();
+            length = out.count;
+            // Links point forward, so the placeholders are replaced once every target is known
+            try (RandomAccessFile text = new RandomAccessFile(file.toFile(), "rw")) {
+                for (int i = 0; i < linkPositions.size(); i++) {
+                    String target = linkTargets.get(i);
+                    Long position = targets.get(target);
+                    if (position == null) {
+                        position = targets.getOrDefault(target.split("#")[0], 0L);
+                    }
+                    text.seek(linkPositions.get(i));
+                    text.write(String.format("%010d", position).getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+        }
+
+        private long length() {
+            return length;
+        }
+
+        private void chapter(ResourceItem chapter) throws IOException {
+            Document document;
+            try (InputStream input = chapter.content.openStream()) {
+                document = Jsoup.parse(input, "UTF-8", "");
+            }
+            document.body().select(DROPPED).remove();
+            targets.put(chapter.fileName, (long) out.count);
+            Element heading = document.body().select("h1, h2, h3").first();
+            chapterTitles.add(new String[] { chapter.fileName,
+                    heading != null && !heading.text().isBlank() ? heading.text().trim() : chapter.fileName });
+            Element body = document.body();
+            IOException[] error = new IOException[1];
+            new NodeTraversor(new NodeVisitor() {
+                @Override
+                public void head(Node node, int depth) {
+                    try {
+                        if (node instanceof TextNode) {
+                            write(escape(((TextNode) node).getWholeText(), false));
+                        } else if (node instanceof Element && node != body) {
+                            start(chapter, (Element) node);
+                        }
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                }
+
+                @Override
+                public void tail(Node node, int depth) {
+                    String name = node instanceof Element && node != body ? tag((Element) node) : null;
+                    if (name != null && !VOID_ELEMENTS.contains(name)) {
+                        try {
+                            write("</" + name + ">");
+                        } catch (IOException e) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            }).traverse(body);
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+
+        // Name of the element in the document, null when only its content is written
+        private static String tag(Element element) {
+            String name = element.tagName().toLowerCase();
+            if (name.indexOf(':') != -1 || "body".equals(name) || "html".equals(name)) {
+                return null;
+            }
+            return HTML5_BLOCKS.contains(name) ? "div" : name;
+        }
+
+        private void start(ResourceItem chapter, Element element) throws IOException {
+            if (!element.id().isEmpty()) {
+                targets.putIfAbsent(chapter.fileName + "#" + element.id(), (long) out.count);
+            }
+            String name = tag(element);
+            if (name == null) {
+                return;
+            }
+            if ("img".equals(name)) {
+                Integer record = images.get(fileName(element.attr("src")));
+                if (record == null) {
+                    // Images of formats that Kindle cannot show are replaced with their description
+                    write(escape(element.attr("alt"), false));
+                    return;
+                }
+                write("<img recindex=\"" + String.format("%05d", record) + "\"");
+            } else {
+                write("<" + name);
+            }
+            for (Attribute attribute : element.attributes()) {
+                if (ATTRIBUTES.contains(attribute.getKey().toLowerCase())) {
+                    write(" " + attribute.getKey().toLowerCase() + "=\"" + escape(attribute.getValue(), true) + "\"");
+                }
+            }
+            if ("a".equals(name) && element.hasAttr("href")) {
+                String href = element.attr("href");
+                if (href.matches("^[a-zA-Z][a-zA-Z0-9+.-]*:.*")) {
+                    write(" href=\"" + escape(href, true) + "\"");
+                } else {
+                    int hash = href.indexOf('#');
+                    String path = hash == -1 ? href : href.substring(0, hash);
+                    String target = path.isEmpty() ? chapter.fileName : fileName(path);
+                    write(" ");
+                    link(hash == -1 ? target : target + href.substring(hash));
+                }
+            }
+            write(VOID_ELEMENTS.contains(name) ? " />" : ">");
+        }
+
+        // Table of contents from the NCX, or from the headings of the chapters when there is no NCX
+        private void toc(BookData book) throws IOException {
+            write("<div><h2>Contents</h2>");
+            ResourceItem ncx = book.getNcxResource();
+            boolean written = false;
+            if (ncx != null && ncx.content != null) {
+                Document document;
+                try (InputStream input = ncx.content.openStream()) {
+                    document = Jsoup.parse(input, "UTF-8", "", Parser.xmlParser());
+                }
+                for (Element point : document.select("navPoint")) {
+                    Element label = point.select("navLabel").first();
+                    Element content = point.select("content").first();
+                    if (label == null || content == null) {
+                        continue;
+                    }
+                    int depth = 0;
+                    for (Element parent : point.parents()) {
+                        if ("navPoint".equalsIgnoreCase(parent.tagName())) {
+                            depth++;
+                        }
+                    }
+                    String src = content.attr("src");
+                    int hash = src.indexOf('#');
+                    String target = hash == -1 ? fileName(src)
+                            : fileName(src.substring(0, hash)) + src.substring(hash);
+                    tocEntry(label.text().trim(), target, depth);
+                    written = true;
+                }
+            }
+            if (!written) {
+                for (String[] chapter : chapterTitles) {
+                    tocEntry(chapter[1], chapter[0], 0);
+                }
+            }
+            write("</div>");
+        }
+
+        private void tocEntry(String label, String target, int depth) throws IOException {
+            StringBuilder indent = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                indent.append("&#160;&#160;&#160;&#160;");
+            }
+            write("<p>" + indent + "<a ");
+            link(target);
+            write(">" + escape(label, false) + "</a></p>");
+        }
+
+        private static String fileName(String path) {
+            String[] segments = path.split("/");
+            try {
+                return URLDecoder.decode(segments[segments.length - 1].replace("+", "%2B"), "UTF-8");
+            } catch (IllegalArgumentException | IOException e) {
+                return segments[segments.length - 1];
+            }
+        }
+
+        private void link(String target) throws IOException {
+            write("filepos=");
+            linkPositions.add((long) out.count);
+            linkTargets.add(target);
+            write(PLACEHOLDER);
+        }
+
+        private static String escape(String text, boolean attribute) {
+            StringBuilder escaped = new StringBuilder(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '&') {
+                    escaped.append("&amp;");
+                } else if (c == '<') {
+                    escaped.append("&lt;");
+                } else if (c == '>') {
+                    escaped.append("&gt;");
+                } else if (c == '"' && attribute) {
+                    escaped.append("&quot;");
+                } else if (c == '\u00A0') {
+                    escaped.append("&#160;");
+                } else {
+                    escaped.append(c);
+                }
+            }
+            return escaped.toString();
+        }
+
+        private void write(String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.output.close();
+        }
+    }
+}
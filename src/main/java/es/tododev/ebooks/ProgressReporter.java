@@ -0,0 +1,101 @@
+package es.tododev.ebooks;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import es.tododev.ebooks.Metrics.BookMetrics;
+
+/**
+ * Prints every few seconds one line with the progress of the run, from a background thread, so the download threads
+ * never wait for the console. The estimated time only covers the resources of the books that are already listed.
+ */
+public class ProgressReporter implements Closeable {
+
+    private static final String INTERVAL_KEY = "progress.interval.seconds";
+    private final Metrics metrics;
+    private final BookScheduler scheduler;
+    private final ScheduledExecutorService executor;
+    private long lastState = -1;
+
+    public ProgressReporter(Context context, BookScheduler scheduler) {
+        this.metrics = context.getMetrics();
+        this.scheduler = scheduler;
+        int interval = context.getInt(INTERVAL_KEY, 5);
+        if (interval > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.SECONDS);
+        } else {
+            executor = null;
+        }
+    }
+
+    // Nothing is printed while no resource is downloaded and no book finishes, like when the PDFs are rendered
+    private void report() {
+        long state = 0;
+        for (BookMetrics book : metrics.getBooks()) {
+            state += book.getDownloaded();
+        }
+        for (BookJob job : scheduler.getJobs()) {
+            if (job.getStatus() != BookJob.Status.QUEUED) {
+                state++;
+            }
+            if (job.isFinished()) {
+                state++;
+            }
+        }
+        if (state != lastState) {
+            System.out.println(line());
+            lastState = state;
+        }
+    }
+
+    String line() {
+        List<BookJob> jobs = scheduler.getJobs();
+        int finished = 0;
+        int running = 0;
+        for (BookJob job : jobs) {
+            if (job.isFinished()) {
+                finished++;
+            } else if (job.getStatus() == BookJob.Status.RUNNING) {
+                running++;
+            }
+        }
+        long downloaded = 0;
+        long remaining = 0;
+        long bytes = 0;
+        for (BookMetrics book : metrics.getBooks()) {
+            downloaded += book.getDownloaded();
+            bytes += book.getBytes();
+            if (book.getExpected() > book.getDownloaded()) {
+                remaining += book.getExpected() - book.getDownloaded();
+            }
+        }
+        double seconds = Math.max(1, System.currentTimeMillis() - metrics.getStartMillis()) / 1000.0;
+        double perSecond = downloaded / seconds;
+        String eta = remaining == 0 ? "-" : perSecond == 0 ? "?" : duration((long) (remaining / perSecond));
+        return String.format("[%s] Books %d/%d (%d running) | Resources %d (%.1f/s) | %.1f MB (%.2f MB/s) | ETA %s",
+                duration((long) seconds), finished, jobs.size(), running, downloaded, perSecond,
+                bytes / 1048576.0, bytes / 1048576.0 / seconds, eta);
+    }
+
+    private static String duration(long seconds) {
+        if (seconds >= 3600) {
+            return String.format("%dh%02dm", seconds / 3600, seconds % 3600 / 60);
+        }
+        return String.format("%dm%02ds", seconds / 60, seconds % 60);
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package es.tododev.ebooks;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where the bodies of the book are read from, the {@link HttpTransport} or a {@link BookArchive}.
+ */
+public interface ResourceSource {
+
+    /**
+     * Text resources can be requested compressed, the returned stream is always decoded.
+     */
+    InputStream open(String url, boolean text) throws IOException, InterruptedException;
+}
@@ -0,0 +1,18 @@
+package es.tododev.ebooks;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface ResourceStore extends Closeable {
+
+    StoredContent store(InputStream input) throws IOException;
+
+    default StoredContent store(byte[] content) throws IOException {
+        return store(new ByteArrayInputStream(content));
+    }
+
+    @Override
+    void close() throws IOException;
+}
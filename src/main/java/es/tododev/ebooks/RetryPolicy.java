@@ -0,0 +1,81 @@
+package es.tododev.ebooks;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries a request up to retry.attempts times. The delay doubles after every attempt, from retry.delay.millis up to
+ * retry.max.delay.millis, and a random part of it is subtracted so the requests that failed together are not sent
+ * together again. A Retry-After header longer than the delay is respected, unless it is longer than
+ * retry.after.max.seconds, then the request fails.
+ */
+public class RetryPolicy {
+
+    private static final String ATTEMPTS_KEY = "retry.attempts";
+    private static final String DELAY_KEY = "retry.delay.millis";
+    private static final String MAX_DELAY_KEY = "retry.max.delay.millis";
+    private static final String RETRY_AFTER_MAX_KEY = "retry.after.max.seconds";
+    // Statuses that can change by just waiting, the rest are retried in vain
+    private static final Set<Integer> RETRY_STATUSES = new HashSet<>(Arrays.asList(408, 425, 429, 500, 502, 503,
+            504));
+    private final int attempts;
+    private final long delayMillis;
+    private final long maxDelayMillis;
+    private final long retryAfterMaxMillis;
+
+    public RetryPolicy(Context context) {
+        this(context.getInt(ATTEMPTS_KEY, 4), context.getInt(DELAY_KEY, 500), context.getInt(MAX_DELAY_KEY, 30000),
+                TimeUnit.SECONDS.toMillis(context.getInt(RETRY_AFTER_MAX_KEY, 120)));
+    }
+
+    RetryPolicy(int attempts, long delayMillis, long maxDelayMillis, long retryAfterMaxMillis) {
+        this.attempts = Math.max(1, attempts);
+        this.delayMillis = delayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.retryAfterMaxMillis = retryAfterMaxMillis;
+    }
+
+    /**
+     * Result of the first successful attempt. The exception of the last attempt is thrown when none succeeds.
+     */
+    public <T> T call(Attempt<T> attempt, Runnable onRetry) throws IOException, InterruptedException {
+        for (int i = 1;; i++) {
+            try {
+                return attempt.run();
+            } catch (IOException e) {
+                long wait = delay(e, i);
+                if (i >= attempts || wait < 0) {
+                    throw e;
+                }
+                onRetry.run();
+                TimeUnit.MILLISECONDS.sleep(wait);
+            }
+        }
+    }
+
+    // Milliseconds to wait before the next attempt, or -1 if it is not worth retrying
+    long delay(IOException e, int attempt) {
+        if (e instanceof FileNotFoundException) {
+            return -1;
+        }
+        long backoff = Math.min(maxDelayMillis, delayMillis << Math.min(attempt - 1, 20));
+        long wait = backoff - ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        if (e instanceof HttpStatusException) {
+            HttpStatusException status = (HttpStatusException) e;
+            if (!RETRY_STATUSES.contains(status.getStatus()) || status.getRetryAfterMillis() > retryAfterMaxMillis) {
+                return -1;
+            }
+            wait = Math.max(wait, status.getRetryAfterMillis());
+        }
+        return wait;
+    }
+
+    public interface Attempt<T> {
+        T run() throws IOException, InterruptedException;
+    }
+}
@@ -0,0 +1,497 @@
+package es.tododev.ebooks;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Full text index of the library. Every book is a segment file in the index folder, named after its ISBN, so indexing
+ * a book again only replaces its own segment. Segments are memory mapped and searched in place:
+ * <ul>
+ * <li>Header: ISBN, title and name of the book, and the chapters with the position of every element id.</li>
+ * <li>Terms: a table of fixed size entries sorted by term, to find a term with a binary search.</li>
+ * <li>Postings: chapter and position of every occurrence of the terms, sorted, so the next word of a phrase is also
+ * found with a binary search.</li>
+ * </ul>
+ * Terms are the words of the text in lower case and without accents.
+ */
+public class SearchIndex implements Closeable {
+
+    static final String EXTENSION = ".seg";
+    private static final int MAGIC = 0x45424958;
+    private static final int VERSION = 1;
+    private static final int TERM_ENTRY = 12;
+    private static final int POSTING = 8;
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * Maps the segments of the folder. Segments that cannot be read are skipped with a warning.
+     */
+    public SearchIndex(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + EXTENSION)) {
+            for (Path file : files) {
+                try {
+                    segments.add(new Segment(file));
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("WARNING: Cannot read the index segment " + file + ": " + e);
+                }
+            }
+        }
+        segments.sort((a, b) -> a.isbn.compareTo(b.isbn));
+    }
+
+    public int getBooks() {
+        return segments.size();
+    }
+
+    /**
+     * Words of the text in lower case and without accents.
+     */
+    static List<String> tokens(String text) {
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+            } else if (token.length() > 0) {
+                tokens.add(token.toString().toLowerCase(Locale.ROOT));
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString().toLowerCase(Locale.ROOT));
+        }
+        return tokens;
+    }
+
+    /**
+     * Parses a query: words, and phrases between double quotes. Every one of them must be in the chapter.
+     */
+    static List<List<String>> parse(String query) {
+        List<List<String>> clauses = new ArrayList<>();
+        String[] parts = query.split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            List<String> tokens = tokens(parts[i]);
+            if (i % 2 == 1) {
+                if (!tokens.isEmpty()) {
+                    clauses.add(tokens);
+                }
+            } else {
+                for (String token : tokens) {
+                    clauses.add(Arrays.asList(token));
+                }
+            }
+        }
+        return clauses;
+    }
+
+    /**
+     * Chapters that contain every word and phrase of the query, with the anchors of the first clause occurrences.
+     */
+    public List<Hit> search(String query, int maxHits) {
+        List<List<String>> clauses = parse(query);
+        List<Hit> hits = new ArrayList<>();
+        if (clauses.isEmpty()) {
+            return hits;
+        }
+        for (Segment segment : segments) {
+            segment.search(clauses, hits, maxHits);
+            if (hits.size() >= maxHits) {
+                break;
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public void close() {
+        // Mapped buffers are released by the garbage collector
+        segments.clear();
+    }
+
+    /**
+     * Writes the segment of a book. Positions are counted in words from the start of every chapter.
+     */
+    static class SegmentWriter {
+        private final String isbn;
+        private final String title;
+        private final String bookName;
+        private final List<String> chapterNames = new ArrayList<>();
+        private final List<String> chapterTitles = new ArrayList<>();
+        private final List<List<Object[]>> anchors = new ArrayList<>();
+        private final Map<String, IntList> postings = new HashMap<>();
+        private int position;
+
+        SegmentWriter(String isbn, String title, String bookName) {
+            this.isbn = isbn;
+            this.title = title;
+            this.bookName = bookName;
+        }
+
+        void startChapter(String fileName, String title) {
+            chapterNames.add(fileName);
+            chapterTitles.add(title);
+            anchors.add(new ArrayList<>());
+            position = 0;
+        }
+
+        void anchor(String id) {
+            anchors.get(anchors.size() - 1).add(new Object[] { position, id });
+        }
+
+        void text(String text) {
+            int chapter = chapterNames.size() - 1;
+            for (String token : tokens(text)) {
+                postings.computeIfAbsent(token, key -> new IntList()).add(chapter, position++);
+            }
+        }
+
+        /**
+         * Writes a temporary file that is moved over the segment once complete, so searches never see half of it.
+         */
+        void write(Path file) throws IOException {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+                    write(out);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, isbn);
+            writeString(out, title);
+            writeString(out, bookName);
+            out.writeInt(chapterNames.size());
+            for (int i = 0; i < chapterNames.size(); i++) {
+                writeString(out, chapterNames.get(i));
+                writeString(out, chapterTitles.get(i));
+                out.writeInt(anchors.get(i).size());
+                for (Object[] anchor : anchors.get(i)) {
+                    out.writeInt((Integer) anchor[0]);
+                    writeString(out, (String) anchor[1]);
+                }
+            }
+            // Sorted the same way the binary search compares them
+            byte[][] terms = new byte[postings.size()][];
+            int t = 0;
+            for (String term : postings.keySet()) {
+                terms[t++] = term.getBytes(StandardCharsets.UTF_8);
+            }
+            Arrays.sort(terms, Arrays::compareUnsigned);
+            out.writeInt(terms.length);
+            int termOffset = 0;
+            int postingOffset = 0;
+            for (byte[] term : terms) {
+                IntList list = postings.get(new String(term, StandardCharsets.UTF_8));
+                out.writeInt(termOffset);
+                out.writeInt(postingOffset);
+                out.writeInt(list.size / 2);
+                termOffset += term.length;
+                postingOffset += list.size / 2;
+            }
+            out.writeInt(termOffset);
+            for (byte[] term : terms) {
+                out.write(term);
+            }
+            for (byte[] term : terms) {
+                IntList list = postings.get(new String(term, StandardCharsets.UTF_8));
+                for (int i = 0; i < list.size; i++) {
+                    out.writeInt(list.values[i]);
+                }
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[8];
+        private int size;
+
+        private void add(int chapter, int position) {
+            if (size + 2 > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size++] = chapter;
+            values[size++] = position;
+        }
+    }
+
+    private static class Segment {
+        private final String isbn;
+        private final String title;
+        private final String bookName;
+        private final String[] chapterNames;
+        private final String[] chapterTitles;
+        private final int[][] anchorPositions;
+        private final String[][] anchorIds;
+        private final MappedByteBuffer buffer;
+        // The term table, decoded once. termStarts has one more entry with the end of the last term
+        private final int[] termStarts;
+        private final int[] postingStarts;
+        private final int[] postingCounts;
+        private final int termBytes;
+        private final int postings;
+
+        private Segment(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown format");
+            }
+            isbn = readString(buffer);
+            title = readString(buffer);
+            bookName = readString(buffer);
+            int chapters = buffer.getInt();
+            chapterNames = new String[chapters];
+            chapterTitles = new String[chapters];
+            anchorPositions = new int[chapters][];
+            anchorIds = new String[chapters][];
+            for (int i = 0; i < chapters; i++) {
+                chapterNames[i] = readString(buffer);
+                chapterTitles[i] = readString(buffer);
+                int anchors = buffer.getInt();
+                anchorPositions[i] = new int[anchors];
+                anchorIds[i] = new String[anchors];
+                for (int a = 0; a < anchors; a++) {
+                    anchorPositions[i][a] = buffer.getInt();
+                    anchorIds[i][a] = readString(buffer);
+                }
+            }
+            int termCount = buffer.getInt();
+            if (termCount < 0 || termCount > buffer.remaining() / TERM_ENTRY) {
+                throw new IOException("Wrong number of terms " + termCount);
+            }
+            termStarts = new int[termCount + 1];
+            postingStarts = new int[termCount];
+            postingCounts = new int[termCount];
+            for (int i = 0; i < termCount; i++) {
+                termStarts[i] = buffer.getInt();
+                postingStarts[i] = buffer.getInt();
+                postingCounts[i] = buffer.getInt();
+            }
+            int termLength = buffer.getInt();
+            termStarts[termCount] = termLength;
+            termBytes = buffer.position();
+            postings = termBytes + termLength;
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void search(List<List<String>> clauses, List<Hit> hits, int maxHits) {
+            // First and count of the postings of every word of every clause
+            List<int[][]> ranges = new ArrayList<>();
+            for (List<String> clause : clauses) {
+                int[][] words = new int[clause.size()][];
+                for (int w = 0; w < clause.size(); w++) {
+                    words[w] = find(clause.get(w));
+                    if (words[w] == null) {
+                        return;
+                    }
+                }
+                ranges.add(words);
+            }
+            Map<Integer, List<Integer>> matches = phrase(ranges.get(0));
+            for (int c = 1; c < ranges.size() && !matches.isEmpty(); c++) {
+                matches.keySet().retainAll(phrase(ranges.get(c)).keySet());
+            }
+            List<Integer> chapters = new ArrayList<>(matches.keySet());
+            chapters.sort(null);
+            for (int chapter : chapters) {
+                if (hits.size() >= maxHits) {
+                    return;
+                }
+                List<String> anchors = new ArrayList<>();
+                for (int position : matches.get(chapter)) {
+                    String anchor = anchor(chapter, position);
+                    if (anchor != null && !anchors.contains(anchor)) {
+                        anchors.add(anchor);
+                    }
+                }
+                hits.add(new Hit(isbn, title, bookName, chapterNames[chapter], chapterTitles[chapter], anchors,
+                        matches.get(chapter).size()));
+            }
+        }
+
+        // Positions where the phrase starts, by chapter
+        private Map<Integer, List<Integer>> phrase(int[][] words) {
+            Map<Integer, List<Integer>> positions = new HashMap<>();
+            int[] first = words[0];
+            for (int i = 0; i < first[1]; i++) {
+                int chapter = postingChapter(first[0] + i);
+                int position = postingPosition(first[0] + i);
+                boolean found = true;
+                for (int w = 1; w < words.length && found; w++) {
+                    found = contains(words[w], chapter, position + w);
+                }
+                if (found) {
+                    positions.computeIfAbsent(chapter, key -> new ArrayList<>()).add(position);
+                }
+            }
+            return positions;
+        }
+
+        private boolean contains(int[] range, int chapter, int position) {
+            int low = range[0];
+            int high = range[0] + range[1] - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int compare = Integer.compare(postingChapter(middle), chapter);
+                if (compare == 0) {
+                    compare = Integer.compare(postingPosition(middle), position);
+                }
+                if (compare == 0) {
+                    return true;
+                } else if (compare < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return false;
+        }
+
+        private int postingChapter(int posting) {
+            return buffer.getInt(postings + posting * POSTING);
+        }
+
+        private int postingPosition(int posting) {
+            return buffer.getInt(postings + posting * POSTING + 4);
+        }
+
+        // First posting and number of postings of the term, or null when it is not in the book
+        private int[] find(String term) {
+            byte[] key = term.getBytes(StandardCharsets.UTF_8);
+            int low = 0;
+            int high = postingStarts.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int compare = compareTerm(middle, key);
+                if (compare == 0) {
+                    return new int[] { postingStarts[middle], postingCounts[middle] };
+                } else if (compare < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return null;
+        }
+
+        private int compareTerm(int index, byte[] key) {
+            int start = termStarts[index];
+            int length = termStarts[index + 1] - start;
+            for (int i = 0; i < Math.min(length, key.length); i++) {
+                int compare = Integer.compare(buffer.get(termBytes + start + i) & 0xFF, key[i] & 0xFF);
+                if (compare != 0) {
+                    return compare;
+                }
+            }
+            return Integer.compare(length, key.length);
+        }
+
+        // Last element id before the position
+        private String anchor(int chapter, int position) {
+            int index = Arrays.binarySearch(anchorPositions[chapter], position);
+            if (index < 0) {
+                index = -index - 2;
+            } else {
+                // The last of the ids at the same position is the innermost element
+                while (index + 1 < anchorPositions[chapter].length && anchorPositions[chapter][index + 1] == position) {
+                    index++;
+                }
+            }
+            return index < 0 ? null : anchorIds[chapter][index];
+        }
+    }
+
+    public static class Hit {
+        private final String isbn;
+        private final String title;
+        private final String bookName;
+        private final String chapter;
+        private final String chapterTitle;
+        private final List<String> anchors;
+        private final int occurrences;
+
+        private Hit(String isbn, String title, String bookName, String chapter, String chapterTitle,
+                List<String> anchors, int occurrences) {
+            this.isbn = isbn;
+            this.title = title;
+            this.bookName = bookName;
+            this.chapter = chapter;
+            this.chapterTitle = chapterTitle;
+            this.anchors = anchors;
+            this.occurrences = occurrences;
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        public String getChapter() {
+            return chapter;
+        }
+
+        public List<String> getAnchors() {
+            return anchors;
+        }
+
+        public int getOccurrences() {
+            return occurrences;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder();
+            line.append(isbn).append(' ').append(title).append(" | ").append(chapterTitle).append(" (")
+                    .append(chapter).append(") ").append(occurrences).append(occurrences == 1 ? " hit" : " hits");
+            for (int i = 0; i < Math.min(anchors.size(), 5); i++) {
+                line.append(i == 0 ? " at " : ", ").append(chapter).append('#').append(anchors.get(i));
+            }
+            return line.toString();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package es.tododev.ebooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Adds the text of the chapters to the search index of the library, replacing the segment of the book.
+ */
+public class SearchIndexWriter implements FormatWriter {
+
+    static final String INDEX_DIR_KEY = "index.dir";
+    // Increase it when the indexed text changes, so existing books are indexed again
+    static final String VERSION = "1";
+    private static final String ARTIFACT = "index";
+    private final Context context;
+    private final String isbn;
+    private final BookManifest manifest;
+
+    public SearchIndexWriter(Context context, String isbn, Set<String> formats) throws IOException {
+        this.context = context;
+        this.isbn = isbn;
+        this.manifest = BookManifest.load(context, isbn, ARTIFACT);
+    }
+
+    static File folder(Context context) {
+        return new File(context.getProperty(INDEX_DIR_KEY, "books/index"));
+    }
+
+    @Override
+    public boolean isUpToDate(String bookName, String listing) {
+        return manifest.isUpToDate(VERSION, segment(), listing);
+    }
+
+    private File segment() {
+        return new File(folder(context), isbn + SearchIndex.EXTENSION);
+    }
+
+    @Override
+    public void write(BookData book, Map<String, String> checksums) throws IOException {
+        File segment = segment();
+        if (manifest.isUpToDate(VERSION, segment, checksums)) {
+            System.out.println("Up to date " + segment.getAbsolutePath());
+            return;
+        }
+        try (Metrics.Timer timer = context.getMetrics().book(isbn).phase(Metrics.INDEX)) {
+            SearchIndex.SegmentWriter writer = new SearchIndex.SegmentWriter(isbn, book.getTitleOriginal(),
+                    book.getBookName());
+            List<ResourceItem> chapters = new ArrayList<>();
+            chapters.add(book.getCoverPage());
+            for (ResourceItem item : book.getResources()) {
+                if ("chapter".equals(item.kind)) {
+                    chapters.add(item);
+                }
+            }
+            for (ResourceItem chapter : chapters) {
+                if (chapter != null && !chapter.placeholder) {
+                    index(chapter, writer);
+                }
+            }
+            writer.write(segment.toPath());
+            System.out.println("Indexed " + segment.getAbsolutePath());
+        }
+        manifest.save(VERSION, segment, checksums);
+    }
+
+    private void index(ResourceItem chapter, SearchIndex.SegmentWriter writer) throws IOException {
+        Document document;
+        try (InputStream input = chapter.content.openStream()) {
+            document = Jsoup.parse(input, "UTF-8", "");
+        }
+        writer.startChapter(chapter.fileName, title(document, chapter.fileName));
+        new NodeTraversor(new NodeVisitor() {
+            @Override
+            public void head(Node node, int depth) {
+                if (node instanceof Element && !((Element) node).id().isEmpty()) {
+                    writer.anchor(((Element) node).id());
+                } else if (node instanceof TextNode && node.parent() instanceof Element) {
+                    String parent = ((Element) node.parent()).tagName().toLowerCase();
+                    if (!"script".equals(parent) && !"style".equals(parent)) {
+                        writer.text(((TextNode) node).text());
+                    }
+                }
+            }
+
+            @Override
+            public void tail(Node node, int depth) {
+            }
+        }).traverse(document.body());
+    }
+
+    private static String title(Document document, String fileName) {
+        Element heading = document.body().select("h1, h2, h3").first();
+        if (heading != null && !heading.text().isBlank()) {
+            return heading.text().trim();
+        }
+        return document.title().isBlank() ? fileName : document.title().trim();
+    }
+}
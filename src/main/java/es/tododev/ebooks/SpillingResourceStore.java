@@ -0,0 +1,171 @@
+package es.tododev.ebooks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps small resources on the heap while the shared {@link MemoryBudget} allows it and spills
+ * everything else to a temporary folder of the book.
+ */
+public class SpillingResourceStore implements ResourceStore {
+
+    private final MemoryBudget budget;
+    private final int threshold;
+    private final Path tempRoot;
+    private final String prefix;
+    private final List<StoredContent> contents = new ArrayList<>();
+    private Path folder;
+
+    public SpillingResourceStore(MemoryBudget budget, int threshold, Path tempRoot, String prefix) {
+        this.budget = budget;
+        this.threshold = threshold;
+        this.tempRoot = tempRoot;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public StoredContent store(InputStream input) throws IOException {
+        byte[] head;
+        // The head is read before knowing if it stays in memory, so it waits for room in the budget
+        try (MemoryBudget.Permit permit = budget.acquireInterruptibly(threshold + 1)) {
+            head = input.readNBytes(threshold + 1);
+        }
+        StoredContent content;
+        if (head.length <= threshold && budget.tryAcquire(head.length)) {
+            content = new MemoryContent(head);
+        } else {
+            Path file = Files.createTempFile(folder(), "res", ".bin");
+            try (OutputStream out = Files.newOutputStream(file)) {
+                out.write(head);
+                input.transferTo(out);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            content = new FileContent(file);
+        }
+        synchronized (contents) {
+            contents.add(content);
+        }
+        return content;
+    }
+
+    private synchronized Path folder() throws IOException {
+        if (folder == null) {
+            Files.createDirectories(tempRoot);
+            folder = Files.createTempDirectory(tempRoot, prefix);
+        }
+        return folder;
+    }
+
+    /**
+     * Releases every resource even if some of them fail, then throws the first failure with the others suppressed.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        synchronized (contents) {
+            for (StoredContent content : contents) {
+                try {
+                    content.release();
+                } catch (UncheckedIOException e) {
+                    failure = failed(failure, e.getCause());
+                } catch (RuntimeException e) {
+                    failure = failed(failure, new IOException("Cannot release a resource", e));
+                }
+            }
+            contents.clear();
+        }
+        synchronized (this) {
+            if (folder != null) {
+                try {
+                    Files.deleteIfExists(folder);
+                } catch (IOException e) {
+                    failure = failed(failure, e);
+                }
+                folder = null;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static IOException failed(IOException first, IOException e) {
+        if (first == null) {
+            return e;
+        }
+        first.addSuppressed(e);
+        return first;
+    }
+
+    private class MemoryContent implements StoredContent {
+
+        private byte[] content;
+
+        private MemoryContent(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public long size() {
+            return content.length;
+        }
+
+        @Override
+        public synchronized void release() {
+            if (content.length > 0) {
+                budget.release(content.length);
+                content = new byte[0];
+            }
+        }
+
+        // A copy, the array is also the content of the streams
+        @Override
+        public synchronized byte[] readAllBytes() {
+            return content.clone();
+        }
+    }
+
+    private static class FileContent implements StoredContent {
+
+        private final Path file;
+        private final long size;
+
+        private FileContent(Path file) throws IOException {
+            this.file = file;
+            this.size = Files.size(file);
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void release() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package es.tododev.ebooks;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface StoredContent {
+
+    InputStream openStream() throws IOException;
+
+    long size();
+
+    void release();
+
+    default byte[] readAllBytes() throws IOException {
+        try (InputStream input = openStream()) {
+            return input.readAllBytes();
+        }
+    }
+}
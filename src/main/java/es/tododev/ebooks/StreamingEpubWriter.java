@@ -0,0 +1,232 @@
+package es.tododev.ebooks;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+/**
+ * Writes an EPUB 2 straight to a zip file. Resources are streamed from the book as they are added, so they can be
+ * written while the rest of the book is still downloading. The package document and the table of contents are
+ * generated from the book at the end. The file is only moved to its final name when it is complete.
+ */
+class StreamingEpubWriter implements Closeable {
+
+    // Folder of the resources and generated documents inside the EPUB
+    static final String CONTENT_FOLDER = "OEBPS";
+    private static final String OPF = "content.opf";
+    private static final String NCX = "toc.ncx";
+    // Formats that are already compressed, deflating them again only costs time
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList("image/jpeg", "image/png",
+            "image/gif", "image/webp", "video/mp4", "audio/mpeg", "audio/mp4", "font/woff", "font/woff2",
+            "application/font-woff"));
+    private static final String CONTAINER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">\n"
+            + "<rootfiles>\n<rootfile full-path=\"" + CONTENT_FOLDER + "/" + OPF
+            + "\" media-type=\"application/oebps-package+xml\"/>\n</rootfiles>\n</container>\n";
+    private final File temp;
+    private final ZipOutputStream zip;
+    private final byte[] buffer = new byte[64 * 1024];
+    // Media type of the written resources by their full path
+    private final Map<String, String> written = new LinkedHashMap<>();
+    private boolean finished;
+
+    StreamingEpubWriter(File folder, String prefix) throws IOException {
+        folder.mkdirs();
+        this.temp = File.createTempFile(prefix, ".tmp", folder);
+        this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+        // The mimetype must be the first entry and not compressed
+        writeStored("mimetype", "application/epub+zip".getBytes(StandardCharsets.US_ASCII));
+        writeDeflated("META-INF/container.xml", CONTAINER);
+    }
+
+    /**
+     * Writes the resource if it was not written yet. It can be invoked from several threads.
+     */
+    synchronized void write(ResourceItem item) throws IOException {
+        if (written.containsKey(item.fullPath) || OPF.equals(item.fullPath) || NCX.equals(item.fullPath)) {
+            return;
+        }
+        String name = CONTENT_FOLDER + "/" + item.fullPath;
+        ZipEntry entry = new ZipEntry(name);
+        if (item.mediaType != null && COMPRESSED_TYPES.contains(item.mediaType)) {
+            // Stored entries need the size and the CRC before the content
+            CRC32 crc = new CRC32();
+            try (InputStream input = item.content.openStream()) {
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                }
+            }
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(item.content.size());
+            entry.setCompressedSize(item.content.size());
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        try (InputStream input = item.content.openStream()) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                zip.write(buffer, 0, read);
+            }
+        }
+        zip.closeEntry();
+        written.put(item.fullPath, item.mediaType);
+    }
+
+    /**
+     * Writes the resources of the book that were not written yet, the package document and the table of contents,
+     * and moves the EPUB to the output file.
+     */
+    synchronized void finish(BookData book, String isbn, File output) throws IOException {
+        List<ResourceItem> chapters = new ArrayList<>();
+        for (ResourceItem item : book.getAllResources()) {
+            if (item == book.getOpfResource() || item == book.getNcxResource()) {
+                continue;
+            }
+            write(item);
+            if ("chapter".equals(item.kind) && item != book.getCoverPage()) {
+                chapters.add(item);
+            }
+        }
+        Map<String, String> ids = ids();
+        writeDeflated(CONTENT_FOLDER + "/" + NCX, ncx(book, isbn, chapters));
+        writeDeflated(CONTENT_FOLDER + "/" + OPF, opf(book, isbn, chapters, ids));
+        zip.close();
+        finished = true;
+        Files.move(temp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private String opf(BookData book, String isbn, List<ResourceItem> chapters, Map<String, String> ids) {
+        StringBuilder opf = new StringBuilder();
+        opf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        opf.append("<package xmlns=\"http://www.idpf.org/2007/opf\" version=\"2.0\" unique-identifier=\"BookId\">\n");
+        opf.append("<metadata xmlns:dc=\"http://purl.org/dc/elements/1.1/\"")
+                .append(" xmlns:opf=\"http://www.idpf.org/2007/opf\">\n");
+        opf.append("<dc:identifier id=\"BookId\" opf:scheme=\"ISBN\">").append(escapeXml(isbn))
+                .append("</dc:identifier>\n");
+        opf.append("<dc:title>").append(escapeXml(book.getTitleOriginal())).append("</dc:title>\n");
+        opf.append("<dc:language>en</dc:language>\n");
+        ResourceItem coverImage = book.getCoverImage();
+        if (coverImage != null && ids.containsKey(coverImage.fullPath)) {
+            opf.append("<meta name=\"cover\" content=\"").append(ids.get(coverImage.fullPath)).append("\"/>\n");
+        }
+        opf.append("</metadata>\n<manifest>\n");
+        opf.append("<item id=\"ncx\" href=\"").append(NCX).append("\" media-type=\"application/x-dtbncx+xml\"/>\n");
+        for (Map.Entry<String, String> entry : written.entrySet()) {
+            String mediaType = entry.getValue() == null ? "application/octet-stream" : entry.getValue();
+            opf.append("<item id=\"").append(ids.get(entry.getKey())).append("\" href=\"")
+                    .append(escapeXml(entry.getKey())).append("\" media-type=\"").append(escapeXml(mediaType))
+                    .append("\"/>\n");
+        }
+        opf.append("</manifest>\n<spine toc=\"ncx\">\n");
+        ResourceItem coverPage = book.getCoverPage();
+        if (coverPage != null) {
+            opf.append("<itemref idref=\"").append(ids.get(coverPage.fullPath)).append("\" linear=\"no\"/>\n");
+        }
+        for (ResourceItem chapter : chapters) {
+            opf.append("<itemref idref=\"").append(ids.get(chapter.fullPath)).append("\"/>\n");
+        }
+        opf.append("</spine>\n");
+        if (coverPage != null) {
+            opf.append("<guide>\n<reference type=\"cover\" href=\"").append(escapeXml(coverPage.fullPath))
+                    .append("\" title=\"cover\"/>\n</guide>\n");
+        }
+        opf.append("</package>\n");
+        return opf.toString();
+    }
+
+    private String ncx(BookData book, String isbn, List<ResourceItem> chapters) {
+        StringBuilder ncx = new StringBuilder();
+        ncx.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        ncx.append("<ncx xmlns=\"http://www.daisy.org/z3986/2005/ncx/\" version=\"2005-1\">\n<head>\n");
+        ncx.append("<meta name=\"dtb:uid\" content=\"").append(escapeXml(isbn)).append("\"/>\n");
+        ncx.append("<meta name=\"dtb:depth\" content=\"1\"/>\n");
+        ncx.append("<meta name=\"dtb:totalPageCount\" content=\"0\"/>\n");
+        ncx.append("<meta name=\"dtb:maxPageNumber\" content=\"0\"/>\n</head>\n");
+        ncx.append("<docTitle><text>").append(escapeXml(book.getTitleOriginal())).append("</text></docTitle>\n");
+        ncx.append("<navMap>\n");
+        int order = 1;
+        for (ResourceItem chapter : chapters) {
+            ncx.append("<navPoint id=\"navPoint-").append(order).append("\" playOrder=\"").append(order)
+                    .append("\">\n<navLabel><text>").append(escapeXml(chapter.fileName))
+                    .append("</text></navLabel>\n<content src=\"").append(escapeXml(chapter.fullPath))
+                    .append("\"/>\n</navPoint>\n");
+            order++;
+        }
+        ncx.append("</navMap>\n</ncx>\n");
+        return ncx.toString();
+    }
+
+    // Unique XML ids of the written resources, from their file names
+    private Map<String, String> ids() {
+        Map<String, String> ids = new LinkedHashMap<>();
+        Set<String> used = new HashSet<>();
+        used.add("ncx");
+        for (String fullPath : written.keySet()) {
+            String name = fullPath.substring(fullPath.lastIndexOf('/') + 1);
+            int dot = name.lastIndexOf('.');
+            String id = (dot > 0 ? name.substring(0, dot) : name).replaceAll("[^A-Za-z0-9_.-]", "_");
+            if (id.isEmpty() || !Character.isLetter(id.charAt(0))) {
+                id = "id_" + id;
+            }
+            String unique = id;
+            for (int i = 2; !used.add(unique); i++) {
+                unique = id + "_" + i;
+            }
+            ids.put(fullPath, unique);
+        }
+        return ids;
+    }
+
+    private void writeStored(String name, byte[] content) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCompressedSize(content.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    private void writeDeflated(String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    private String escapeXml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!finished) {
+            try {
+                zip.close();
+            } finally {
+                temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package es.tododev.ebooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Creates the class data sharing archive that the launcher passes to the JVM, so the classes of Jersey, Jackson and
+ * the converters are mapped from it instead of being loaded and verified in every run. The books of the properties are
+ * processed in a child JVM that dumps the classes it loaded at exit, recording the downloads in book archives. Then the
+ * books are processed again from those archives, with and without the class archive, to measure the difference. Those
+ * runs do not connect to the server and find the books up to date, so they are mostly startup. When archive.mode is
+ * already replay, the training run also uses the existing archives.
+ * <p>
+ * The archive is only valid for the same JVM and class path, it is ignored with a warning otherwise. It is written in
+ * cds.archive, by default ebooks.jsa next to the jar.
+ */
+public class TrainingRun {
+
+    private static final String ARCHIVE_KEY = "cds.archive";
+    private static final String RUNS_KEY = "cds.measure.runs";
+    private static final String MODE_KEY = "archive.mode";
+    private static final String DIR_KEY = "archive.dir";
+    private final Context context;
+    private final String properties;
+    private final Path archive;
+
+    public TrainingRun(Context context, String properties) {
+        this.context = context;
+        this.properties = properties;
+        this.archive = Paths.get(context.getProperty(ARCHIVE_KEY, defaultArchive().toString())).toAbsolutePath();
+    }
+
+    static Path defaultArchive() {
+        Path first = Paths.get(System.getProperty("java.class.path").split(File.pathSeparator)[0]).toAbsolutePath();
+        return first.resolveSibling("ebooks.jsa");
+    }
+
+    public void execute() throws IOException, InterruptedException {
+        if (Runtime.version().feature() < 13) {
+            throw new IllegalStateException("Archives of a training run need Java 13 or newer, this is "
+                    + Runtime.version());
+        }
+        Files.deleteIfExists(archive);
+        Path work = Files.createTempDirectory("ebooks-training");
+        try {
+            boolean replay = BookArchive.isReplay(context);
+            String books = replay ? context.getProperty(DIR_KEY, "archive") : work.resolve("archive").toString();
+            Path training = properties(work, "training", replay ? "replay" : "record", books);
+            Path measure = properties(work, "measure", "replay", books);
+            System.out.println("Training run, the loaded classes will be written in " + archive);
+            long millis = child(training, true, "-XX:ArchiveClassesAtExit=" + archive);
+            if (!Files.exists(archive)) {
+                throw new IOException("The training run did not write " + archive);
+            }
+            System.out.println("Training run finished in " + millis + " ms, measuring the startup");
+            long without = Long.MAX_VALUE;
+            long with = Long.MAX_VALUE;
+            for (int i = 0; i < Math.max(1, context.getInt(RUNS_KEY, 3)); i++) {
+                without = Math.min(without, child(measure, false));
+                with = Math.min(with, child(measure, false, "-XX:SharedArchiveFile=" + archive));
+            }
+            System.out.println(String.format(
+                    "Best of the runs: %d ms without the archive, %d ms with it (%.0f%% faster)", without, with,
+                    100.0 * (without - with) / without));
+        } finally {
+            delete(work);
+        }
+    }
+
+    // The properties of the run with the book archives and a report that does not replace the one of the user
+    private Path properties(Path work, String name, String mode, String books) throws IOException {
+        Properties copy = new Properties();
+        try (InputStream input = Files.newInputStream(Paths.get(properties))) {
+            copy.load(input);
+        }
+        copy.setProperty(MODE_KEY, mode);
+        copy.setProperty(DIR_KEY, books);
+        copy.setProperty("metrics.report", work.resolve(name + "-report.json").toString());
+        Path file = work.resolve(name + ".properties");
+        try (OutputStream output = Files.newOutputStream(file)) {
+            copy.store(output, null);
+        }
+        return file;
+    }
+
+    private static void delete(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // Milliseconds until the child JVM finished
+    private long child(Path properties, boolean output, String... options) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(Arrays.asList(options));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.add(properties.toString());
+        ProcessBuilder builder = new ProcessBuilder(command);
+        if (output) {
+            builder.inheritIO();
+        } else {
+            builder.redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        }
+        long start = System.nanoTime();
+        Process process = builder.start();
+        int exit;
+        try {
+            exit = process.waitFor();
+        } finally {
+            process.destroy();
+        }
+        if (exit != 0) {
+            throw new IOException("The run failed with exit code " + exit + ": " + String.join(" ", command));
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+}
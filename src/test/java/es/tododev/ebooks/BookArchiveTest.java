@@ -0,0 +1,102 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BookArchiveTest {
+
+    private static final String INFO = "https://books.example/api/v2/epubs/urn:orm:book:123";
+    private static final String IMAGE = "https://cdn.example/images/cover.jpg?size=2";
+    private final AtomicInteger requests = new AtomicInteger();
+    private Path folder;
+    private Path file;
+
+    @Before
+    public void before() throws IOException {
+        folder = Files.createTempDirectory("archive");
+        file = folder.resolve("123.zip");
+    }
+
+    @After
+    public void after() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void recordAndReplay() throws Exception {
+        record();
+        try (Stream<Path> files = Files.list(folder)) {
+            assertEquals(Arrays.asList(file), Arrays.asList(files.toArray()));
+        }
+        try (BookArchive archive = BookArchive.replay(file)) {
+            assertEquals("{\"files\":\"https://books.example/files/\"}", read(archive.open(INFO, true)));
+            assertEquals("image", read(archive.open(IMAGE, false)));
+            try {
+                archive.open("https://books.example/other", true);
+                fail("Expected FileNotFoundException");
+            } catch (FileNotFoundException e) {
+            }
+        }
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void unfinishedRecordKeepsNothing() throws Exception {
+        try (BookArchive archive = BookArchive.record(file, this::body)) {
+            read(archive.open(INFO, true));
+        }
+        assertFalse(Files.exists(file));
+        try (Stream<Path> files = Files.list(folder)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void server() throws Exception {
+        record();
+        try (ArchiveServer server = new ArchiveServer(0, 2, Arrays.asList(file.toString()))) {
+            String info = read(new URL(server.getUrl() + "/api/v2/epubs/urn:orm:book:123").openStream());
+            assertEquals("{\"files\":\"" + server.getUrl() + "/files/\"}", info);
+            assertEquals("image", read(new URL(server.getUrl() + "/images/cover.jpg?size=2").openStream()));
+        }
+    }
+
+    private void record() throws Exception {
+        try (BookArchive archive = BookArchive.record(file, this::body)) {
+            assertEquals("{\"files\":\"https://books.example/files/\"}", read(archive.open(INFO, true)));
+            assertEquals("image", read(archive.open(IMAGE, false)));
+            archive.finish();
+        }
+    }
+
+    private InputStream body(String url, boolean text) {
+        requests.incrementAndGet();
+        String body = INFO.equals(url) ? "{\"files\":\"https://books.example/files/\"}" : "image";
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(InputStream input) throws IOException {
+        try (InputStream in = input) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
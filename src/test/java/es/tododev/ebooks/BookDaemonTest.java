@@ -0,0 +1,100 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class BookDaemonTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void jobApi() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("daemon.port", "0");
+        properties.setProperty("progress.interval.seconds", "0");
+        Map<String, Set<String>> processed = new ConcurrentHashMap<>();
+        try (BookDaemon daemon = new BookDaemon(new Context(properties), BookProcessor.formats("epub"),
+                (isbn, formats) -> () -> {
+                    if (isbn.startsWith("bad")) {
+                        throw new IllegalStateException("broken");
+                    }
+                    processed.put(isbn, formats);
+                })) {
+            String url = "http://localhost:" + daemon.getPort() + "/jobs";
+            JsonNode jobs = request("POST", url, "{\"isbns\": [\"1\", \"bad2\"], \"formats\": \"pdf\"}", 202);
+            assertEquals(2, jobs.size());
+            daemon.getScheduler().awaitAll();
+            assertEquals(BookProcessor.formats("pdf"), processed.get("1"));
+            JsonNode job = request("GET", url + "/" + jobs.get(1).get("id").asLong(), null, 200);
+            assertEquals("FAILED", job.get("status").asText());
+            assertTrue(job.get("error").asText().contains("broken"));
+            assertEquals(2, request("GET", url, null, 200).size());
+            request("POST", url, "{\"formats\": \"pdf\"}", 400);
+            request("POST", url, "{\"isbn\": \"3\", \"formats\": \"docx\"}", 400);
+            request("GET", url + "/99", null, 404);
+        }
+    }
+
+    @Test
+    public void spool() throws Exception {
+        Path spool = folder.newFolder("spool").toPath();
+        Files.write(spool.resolve("old"), "1\n".getBytes(StandardCharsets.UTF_8));
+        Properties properties = new Properties();
+        properties.setProperty("daemon.port", "-1");
+        properties.setProperty("daemon.spool.dir", spool.toString());
+        properties.setProperty("progress.interval.seconds", "0");
+        Map<String, Set<String>> processed = new ConcurrentHashMap<>();
+        try (BookDaemon daemon = new BookDaemon(new Context(properties), BookProcessor.formats("epub"),
+                (isbn, formats) -> () -> processed.put(isbn, formats))) {
+            Path temp = spool.resolve("new.tmp");
+            Files.write(temp, "# Books\n2 html,pdf\n\n3\n".getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, spool.resolve("new"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+            while (processed.size() < 3 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(BookProcessor.formats("epub"), processed.get("1"));
+            assertEquals(BookProcessor.formats("html,pdf"), processed.get("2"));
+            assertEquals(BookProcessor.formats("epub"), processed.get("3"));
+            assertTrue(Files.exists(spool.resolve("submitted").resolve("new")));
+        }
+    }
+
+    private static JsonNode request(String method, String url, String body, int status) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(status, connection.getResponseCode());
+        try (InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            return MAPPER.readTree(input);
+        }
+    }
+}
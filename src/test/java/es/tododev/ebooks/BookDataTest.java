@@ -0,0 +1,75 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BookDataTest {
+
+    private static final String BASE_URL = "https://books.example";
+    private static final String FILES = BASE_URL + "/files/";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void listingChecksum() throws Exception {
+        try (BookData book = fetch(true)) {
+            assertNotNull(book.getListingChecksum());
+        }
+    }
+
+    @Test
+    public void noListingChecksumWithPlaceholders() throws Exception {
+        try (BookData book = fetch(false)) {
+            assertTrue(book.getMedia().get("a.png").placeholder);
+            assertNull(book.getListingChecksum());
+            assertNull(BookManifest.checksums(book).get(BookManifest.LISTING));
+        }
+    }
+
+    // Book replayed from an archive, the image is missing from it unless it is complete
+    private BookData fetch(boolean complete) throws Exception {
+        Map<String, String> bodies = new LinkedHashMap<>();
+        bodies.put(BASE_URL + "/api/v2/epubs/urn:orm:book:123", "{'title': 'Book', 'files': '" + FILES + "'}");
+        bodies.put(FILES, "{'count': 2, 'next': null, 'results': [{'url': '" + FILES + "ch1.xhtml', 'kind': 'chapter',"
+                + " 'media_type': 'application/xhtml+xml', 'full_path': 'ch1.xhtml', 'filename': 'ch1.xhtml'},"
+                + " {'url': '" + FILES + "a.png', 'kind': 'image', 'media_type': 'image/png', 'full_path': 'a.png',"
+                + " 'filename': 'a.png'}]}");
+        bodies.put(FILES + "ch1.xhtml", "<html><body><img src='a.png'/></body></html>");
+        if (complete) {
+            bodies.put(FILES + "a.png", "png");
+        }
+        Path archive = temp.newFolder().toPath();
+        try (BookArchive recording = BookArchive.record(archive.resolve("123.zip"),
+                (url, text) -> new ByteArrayInputStream(bodies.get(url).replace('\'', '"')
+                        .getBytes(StandardCharsets.UTF_8)))) {
+            for (String url : bodies.keySet()) {
+                try (InputStream input = recording.open(url, true)) {
+                    input.readAllBytes();
+                }
+            }
+            recording.finish();
+        }
+        Properties properties = new Properties();
+        properties.setProperty("base.url", BASE_URL);
+        properties.setProperty("archive.mode", "replay");
+        properties.setProperty("archive.dir", archive.toString());
+        properties.setProperty("store.temp.dir", temp.newFolder().toString());
+        BookData book = new BookData(new Context(properties), "123");
+        book.fetch();
+        return book;
+    }
+}
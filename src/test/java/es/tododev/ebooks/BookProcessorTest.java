@@ -0,0 +1,27 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import org.junit.Test;
+
+public class BookProcessorTest {
+
+    @Test
+    public void formats() {
+        assertEquals(new LinkedHashSet<>(Arrays.asList("epub", "html", "pdf")),
+                BookProcessor.formats(" EPUB, html,,pdf,epub"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFormat() {
+        BookProcessor.formats("epub,docx");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noFormat() {
+        BookProcessor.formats(" , ");
+    }
+}
@@ -0,0 +1,108 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import es.tododev.ebooks.BookJob.Status;
+
+public class BookSchedulerTest {
+
+    @Test
+    public void statusAndConcurrency() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("books.concurrency", "2");
+        properties.setProperty("books.queue", "1");
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        try (BookScheduler scheduler = new BookScheduler(new Context(properties), isbn -> () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            running.decrementAndGet();
+            if (isbn.startsWith("bad")) {
+                throw new IllegalStateException("broken");
+            }
+        })) {
+            for (String isbn : new String[] {"1", "bad2", "3", "4", "5"}) {
+                scheduler.submit(isbn);
+            }
+            List<BookJob> jobs = scheduler.awaitAll();
+            assertEquals(5, jobs.size());
+            assertEquals(Status.DONE, jobs.get(0).getStatus());
+            assertEquals(Status.FAILED, jobs.get(1).getStatus());
+            assertTrue(maxRunning.get() <= 2);
+            assertTrue(BookScheduler.summary(jobs).contains("broken"));
+        }
+    }
+
+    @Test
+    public void metricsOfResubmittedBooks() throws Exception {
+        Context context = new Context(new Properties());
+        try (BookScheduler scheduler = new BookScheduler(context, isbn -> () -> {
+            Metrics.BookMetrics book = context.getMetrics().book(isbn);
+            book.expect(1);
+            book.downloaded("http://host/" + isbn, "chapter", 10, 1_000_000);
+        })) {
+            scheduler.submit("1");
+            scheduler.awaitAll();
+            scheduler.submit("1");
+            scheduler.awaitAll();
+            assertEquals(1, context.getMetrics().book("1").getDownloaded());
+            scheduler.forgetFinished(1);
+            assertEquals(1, context.getMetrics().getBooks().size());
+            scheduler.forgetFinished(0);
+            assertTrue(context.getMetrics().getBooks().isEmpty());
+        }
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        try (BookScheduler scheduler = new BookScheduler(new Context(new Properties()), isbn -> () -> {
+            started.countDown();
+            Thread.sleep(60000);
+        })) {
+            BookJob job = scheduler.submit("1");
+            started.await();
+            assertTrue(scheduler.cancel(job));
+            scheduler.awaitAll();
+            assertEquals(Status.CANCELLED, job.getStatus());
+        }
+    }
+
+    @Test
+    public void cancelledBookKeepsItsSlotWhileRunning() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("books.concurrency", "1");
+        properties.setProperty("books.queue", "0");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (BookScheduler scheduler = new BookScheduler(new Context(properties), isbn -> () -> {
+            started.countDown();
+            // Ignores the interruption, like a blocking write
+            while (release.getCount() > 0) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Keep running
+                }
+            }
+        })) {
+            BookJob job = scheduler.submit("1");
+            started.await();
+            assertTrue(scheduler.cancel(job));
+            assertNull(scheduler.trySubmit("2", isbn -> () -> {}));
+            release.countDown();
+            BookJob next = scheduler.submit("3");
+            scheduler.awaitAll();
+            assertEquals(Status.DONE, next.getStatus());
+        }
+    }
+}
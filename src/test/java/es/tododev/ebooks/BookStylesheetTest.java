@@ -0,0 +1,54 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jsoup.Jsoup;
+import org.junit.Test;
+
+public class BookStylesheetTest {
+
+    @Test
+    public void compact() {
+        assertEquals("p{margin:0 1em;font-family:\"Times  New\",serif}\n",
+                BookStylesheet.parse("/* Body */\np {\n  margin:0  1em;\n  font-family: \"Times  New\", serif\n}")
+                        .toCss());
+    }
+
+    @Test
+    public void mergeKeepsTheLastCopy() {
+        BookStylesheet first = BookStylesheet.parse("@charset \"utf-8\"; p { color: red } h1 { color: blue }");
+        BookStylesheet second = BookStylesheet.parse("h1 { color: green } p { color: red }");
+        assertEquals("h1{color:blue}\nh1{color:green}\np{color:red}\n",
+                BookStylesheet.merge(Arrays.asList(first, second)).toCss());
+    }
+
+    @Test
+    public void prune() {
+        Set<String> features = new HashSet<>();
+        BookStylesheet.features(Jsoup.parse("<div id=\"main\"><p class=\"note big\">Text <a href=\"#\">link</a></p>"
+                + "</div>"), features);
+        BookStylesheet stylesheet = BookStylesheet.parse("@import url(other.css);\n"
+                + "p.note a:hover, table td { color: red }\n"
+                + "div#main > p.big::first-line { font-weight: bold }\n"
+                + "table td { border: 1px }\n"
+                + "aside p:not(.note) { display: none }\n"
+                + "* { margin: 0 }\n"
+                + "a[href^=\"http\"] { color: blue }\n"
+                + "@media print { .sidebar { display: none } p { orphans: 2 } }\n"
+                + "@media screen { .sidebar { display: none } }\n"
+                + "@font-face { font-family: Book; src: url(book.ttf) }\n"
+                + ".a\\:b { color: red }");
+        assertEquals("@import url(other.css);\n"
+                + "p.note a:hover,table td{color:red}\n"
+                + "div#main > p.big::first-line{font-weight:bold}\n"
+                + "*{margin:0}\n"
+                + "a[href^=\"http\"]{color:blue}\n"
+                + "@media print{p{orphans:2}\n}\n"
+                + "@font-face{font-family:Book;src:url(book.ttf)}\n"
+                + ".a\\:b{color:red}\n", stylesheet.toCss(features));
+    }
+}
@@ -0,0 +1,45 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import es.tododev.ebooks.FileListing.FileEntry;
+
+public class FileListingTest {
+
+    @Test
+    public void parse() throws Exception {
+        String json = "{\"count\": 2, \"next\": \"https://host/files/?page=2\", \"previous\": null, \"results\": ["
+                + "{\"url\": \"https://host/a.xhtml\", \"kind\": \"chapter\", \"media_type\": \"application/xhtml+xml\","
+                + " \"full_path\": \"html/a.xhtml\", \"filename\": \"a.xhtml\", \"extra\": {\"ignored\": [1, 2]}},"
+                + "{\"url\": \"https://host/b.png\", \"kind\": \"image\", \"media_type\": \"image/png\","
+                + " \"full_path\": \"images/b.png\", \"filename\": \"b.png\"}]}";
+        List<FileEntry> entries = new ArrayList<>();
+        FileListing listing = FileListing.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)),
+                entries::add);
+        assertEquals(2, listing.getCount());
+        assertEquals("https://host/files/?page=2", listing.getNext());
+        assertEquals(2, entries.size());
+        assertEquals("html/a.xhtml", entries.get(0).fullPath);
+        assertEquals("chapter", entries.get(0).kind);
+        assertEquals("b.png", entries.get(1).fileName);
+        assertEquals("image/png", entries.get(1).mediaType);
+    }
+
+    @Test
+    public void lastPage() throws Exception {
+        String json = "{\"next\": null, \"results\": []}";
+        FileListing listing = FileListing.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)),
+                entry -> {
+                });
+        assertNull(listing.getNext());
+        assertEquals(-1, listing.getCount());
+    }
+}
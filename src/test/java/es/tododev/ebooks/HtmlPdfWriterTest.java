@@ -0,0 +1,44 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+public class HtmlPdfWriterTest {
+
+    @Test
+    public void inlineStylesOfEveryChapter() throws Exception {
+        ResourceItem first = chapter("ch1.xhtml", "<html><head><style>p { color: red }</style></head>"
+                + "<body><p>One</p></body></html>");
+        ResourceItem second = chapter("ch2.xhtml", "<html><head><title>Two</title><style>h1 { color: blue }</style>"
+                + "<style>p { color: red }</style></head><body><style>b { color: green }</style></body></html>");
+        assertEquals("p{color:red}\nh1{color:blue}\n",
+                HtmlPdfWriter.inlineStyles(Arrays.asList(first, second)).toCss());
+    }
+
+    private static ResourceItem chapter(String fileName, String html) {
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        return new ResourceItem(null, "application/xhtml+xml", fileName, fileName, "chapter", new StoredContent() {
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(bytes);
+            }
+
+            @Override
+            public long size() {
+                return bytes.length;
+            }
+
+            @Override
+            public void release() {
+            }
+        });
+    }
+}
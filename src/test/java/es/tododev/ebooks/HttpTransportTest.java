@@ -0,0 +1,204 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpTransportTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private HttpServer server;
+    private String url;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final AtomicInteger busy = new AtomicInteger();
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = ("Hello " + exchange.getRequestHeaders().getFirst("X-Test")).getBytes(StandardCharsets.UTF_8);
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                }
+                body = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/etag", exchange -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+            } else {
+                byte[] body = "cached".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        // Busy twice before answering
+        server.createContext("/busy", exchange -> {
+            if (busy.incrementAndGet() <= 2) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            } else {
+                byte[] body = "done".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        // Hello in an uncompressed Brotli meta-block, the decoder is the only part of Brotli in the class path
+        server.createContext("/br", exchange -> {
+            byte[] body = { 0x40, 0x00, 0x10, 'H', 'e', 'l', 'l', 'o', 0x03 };
+            exchange.getResponseHeaders().add("Content-Encoding", "br");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/missing", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/test";
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+    }
+
+    @Test
+    public void apache() throws Exception {
+        check("apache");
+    }
+
+    @Test
+    public void http2() throws Exception {
+        check("http2");
+    }
+
+    @Test
+    public void brotli() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("cache.enabled", "false");
+        try (Context context = new Context(properties);
+                InputStream input = context.getTransport().open(url.replace("/test", "/br"), true)) {
+            assertEquals("Hello", new String(input.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void revalidate() throws Exception {
+        Path cacheDir = temp.getRoot().toPath();
+        Properties properties = new Properties();
+        properties.setProperty("cache.dir", cacheDir.toString());
+        String base = "http://localhost:" + server.getAddress().getPort();
+        try (Context context = new Context(properties)) {
+            HttpTransport transport = context.getTransport();
+            for (int i = 0; i < 2; i++) {
+                try (InputStream first = transport.open(base + "/etag?a", false);
+                        InputStream second = transport.open(base + "/etag?b", false)) {
+                    assertEquals("cached", new String(first.readAllBytes(), StandardCharsets.UTF_8));
+                    assertEquals("cached", new String(second.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        assertEquals(4, requests.get());
+        assertEquals(2, notModified.get());
+        // Both URLs share the same body
+        try (Stream<Path> objects = Files.walk(cacheDir.resolve("objects"))) {
+            assertEquals(1, objects.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    public void retry() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("cache.enabled", "false");
+        properties.setProperty("download.host.rate", "0");
+        String base = "http://localhost:" + server.getAddress().getPort();
+        try (Context context = new Context(properties)) {
+            HttpTransport transport = context.getTransport();
+            try {
+                transport.open(base + "/busy", true);
+                fail("Expected HttpStatusException");
+            } catch (HttpStatusException e) {
+                assertEquals(503, e.getStatus());
+                assertEquals(1000, e.getRetryAfterMillis());
+            }
+            AtomicInteger retries = new AtomicInteger();
+            RetryPolicy policy = new RetryPolicy(3, 10, 100, 5000);
+            long start = System.nanoTime();
+            String body = policy.call(() -> {
+                try (InputStream input = transport.open(base + "/busy", true)) {
+                    return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }, retries::incrementAndGet);
+            assertEquals("done", body);
+            assertEquals(1, retries.get());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+            try {
+                policy.call(() -> transport.open(base + "/missing", true), retries::incrementAndGet);
+                fail("Expected HttpStatusException");
+            } catch (HttpStatusException e) {
+                assertEquals(404, e.getStatus());
+                assertEquals(1, retries.get());
+            }
+        }
+    }
+
+    private void check(String connector) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("http.connector", connector);
+        properties.setProperty("header.X-Test", connector);
+        properties.setProperty("cache.enabled", "false");
+        try (Context context = new Context(properties)) {
+            HttpTransport transport = context.getTransport();
+            for (boolean text : new boolean[] { true, false }) {
+                try (InputStream input = transport.open(url, text)) {
+                    assertEquals("Hello " + connector, new String(input.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+public class ImageTranscoderTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void downscaleAndFixMediaType() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("image.max.dimension", "500");
+        MemoryBudget budget = new MemoryBudget(10 * 1024 * 1024);
+        try (SpillingResourceStore store = new SpillingResourceStore(budget, 1024 * 1024,
+                temp.getRoot().toPath(), "book-")) {
+            ResourceItem big = image("big.png", "image/png", store.store(encode(2000, 1000, "jpeg")));
+            StoredContent smallContent = store.store(encode(400, 300, "png"));
+            ResourceItem small = image("small.png", "image/png", smallContent);
+            ImageTranscoder transcoder = new ImageTranscoder(new Context(properties));
+            assertTrue(transcoder.transcode(big, store));
+            assertFalse(transcoder.transcode(small, store));
+            assertEquals("image/jpeg", big.mediaType);
+            BufferedImage scaled = ImageIO.read(new ByteArrayInputStream(big.content.readAllBytes()));
+            assertEquals(500, scaled.getWidth());
+            assertEquals(250, scaled.getHeight());
+            assertEquals("image/png", small.mediaType);
+            assertSame(smallContent, small.content);
+        }
+    }
+
+    private ResourceItem image(String fileName, String mediaType, StoredContent content) {
+        return new ResourceItem(null, mediaType, "images/" + fileName, fileName, "image", content);
+    }
+
+    private byte[] encode(int width, int height, String format) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, x * 7919 + y * 104729);
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, format, output);
+        return output.toByteArray();
+    }
+}
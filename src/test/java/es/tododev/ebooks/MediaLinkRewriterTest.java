@@ -0,0 +1,58 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import es.tododev.ebooks.BookData.ResourceItem;
+
+public class MediaLinkRewriterTest {
+
+    private final ResourceItem chapter = new ResourceItem(null, null, "html/ch01.xhtml", "ch01.xhtml", "chapter", null);
+    private final Map<String, ResourceItem> media = new HashMap<>();
+
+    @Test
+    public void rewrite() throws IOException {
+        addMedia("images/test1");
+        addMedia("images/a+b.v2.png");
+        String html = "<img alt=\"sdsd\" src=\"test1\">sdfdsfdf<img alt=\"sdsd\" src=\"../old/a+b.v2.png\">"
+                + "<img src=\"missing.png\"><p>a+bXv2.png</p>";
+        assertEquals("<img alt=\"sdsd\" src=\"../images/test1\">sdfdsfdf<img alt=\"sdsd\" src=\"../images/a+b.v2.png\">"
+                + "<img src=\"missing.png\"><p>a+bXv2.png</p>", rewrite(html, 2));
+    }
+
+    @Test
+    public void acrossBuffers() throws IOException {
+        addMedia("images/cover.jpg");
+        StringBuilder html = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            html.append("<p>s</p><img src=\"cover.jpg\"/>");
+            expected.append("<p>s</p><img src=\"../images/cover.jpg\"/>");
+        }
+        html.append("<img src=\"unclosed");
+        expected.append("<img src=\"unclosed");
+        assertEquals(expected.toString(), rewrite(html.toString(), 5000));
+    }
+
+    private void addMedia(String fullPath) {
+        String fileName = fullPath.substring(fullPath.lastIndexOf('/') + 1);
+        media.put(fileName, new ResourceItem(null, null, fullPath, fileName, "image", null));
+    }
+
+    private String rewrite(String html, int expectedImages) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        List<ResourceItem> found = new MediaLinkRewriter(media).rewrite(chapter,
+                new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8)), output);
+        assertEquals(expectedImages, found.size());
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
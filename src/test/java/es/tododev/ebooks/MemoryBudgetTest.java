@@ -0,0 +1,49 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void residentLeavesTheReserve() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(100, 30);
+        assertTrue(budget.tryAcquire(70));
+        assertFalse(budget.tryAcquire(1));
+        // Requests bigger than the reserve take the whole reserve
+        try (MemoryBudget.Permit permit = budget.acquire(1000)) {
+            assertEquals(30, budget.getInFlight());
+            assertNull(budget.acquireIfAvailable(1));
+        }
+        assertEquals(0, budget.getInFlight());
+        budget.release(70);
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void waitsForRoom() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(100, 50);
+        assertTrue(budget.tryAcquire(50));
+        MemoryBudget.Permit first = budget.acquire(40);
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            try (MemoryBudget.Permit second = budget.acquire(20)) {
+                acquired.countDown();
+            } catch (InterruptedException e) {
+            }
+        });
+        waiting.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        first.close();
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        waiting.join();
+        assertEquals(0, budget.getInFlight());
+    }
+}
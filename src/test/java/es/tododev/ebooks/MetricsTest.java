@@ -0,0 +1,85 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import es.tododev.ebooks.Metrics.BookMetrics;
+
+public class MetricsTest {
+
+    @Test
+    public void latencies() {
+        BookMetrics book = new Metrics().book("123");
+        for (int i = 0; i < 98; i++) {
+            book.downloaded("http://host/" + i, "chapter", 100, 3_000_000);
+        }
+        book.downloaded("http://host/a", "image", 1000, 400_000_000);
+        book.downloaded("http://host/b", "image", 1000, 700_000_000);
+        Map<String, Object> map = book.toMap();
+        assertEquals(11800L, map.get("bytes"));
+        assertEquals(100L, map.get("requests"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> latency = (Map<String, Object>) map.get("latencyMillis");
+        assertEquals(5L, latency.get("p50"));
+        assertEquals(5L, latency.get("p90"));
+        assertEquals(500L, latency.get("p99"));
+        assertEquals(700L, latency.get("max"));
+    }
+
+    @Test
+    public void concurrentMaxLatency() throws Exception {
+        BookMetrics book = new Metrics().book("123");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            long nanos = (i + 1) * 100_000_000L;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    book.downloaded("http://host/" + j, "chapter", 1, nanos);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> latency = (Map<String, Object>) book.toMap().get("latencyMillis");
+        assertEquals(400L, latency.get("max"));
+    }
+
+    @Test
+    public void report() throws Exception {
+        Metrics metrics = new Metrics();
+        BookMetrics book = metrics.book("123");
+        try (Metrics.Timer timer = book.phase(Metrics.FETCH)) {
+            book.request();
+        }
+        book.downloaded("http://host/a", "chapter", 10, 1_000_000);
+        BookJob job = new BookJob(1, "123");
+        job.start();
+        job.setMetrics(book);
+        job.finish(BookJob.Status.DONE, null);
+        // A later job of the same book does not change the report of this one
+        metrics.reset("123").request();
+        File report = File.createTempFile("report", ".json");
+        try {
+            metrics.writeReport(report, Arrays.asList(job));
+            JsonNode json = new ObjectMapper().readTree(report);
+            assertEquals(2, json.get("requests").asInt());
+            JsonNode entry = json.get("books").get(0);
+            assertEquals("DONE", entry.get("status").asText());
+            assertEquals(1, entry.get("resources").asInt());
+            assertEquals(true, entry.get("phasesMillis").has("fetch"));
+        } finally {
+            report.delete();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MobiWriterTest {
+
+    private static final String BASE_URL = "https://books.example";
+    private static final String FILES = BASE_URL + "/files/";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void overlap() {
+        byte[] text = "abcñ€😀".getBytes(StandardCharsets.UTF_8);
+        assertEquals(0, MobiWriter.overlap(text, 3));
+        assertEquals(1, MobiWriter.overlap(text, 4));
+        assertEquals(0, MobiWriter.overlap(text, 5));
+        assertEquals(2, MobiWriter.overlap(text, 6));
+        assertEquals(1, MobiWriter.overlap(text, 7));
+        assertEquals(0, MobiWriter.overlap(text, 8));
+        assertEquals(3, MobiWriter.overlap(text, 9));
+        assertEquals(0, MobiWriter.overlap(text, text.length));
+    }
+
+    @Test
+    public void book() throws Exception {
+        byte[] big = noise(800, 600);
+        assertTrue(big.length > MobiWriter.MAX_IMAGE_RECORD);
+        Map<String, byte[]> bodies = new LinkedHashMap<>();
+        bodies.put(BASE_URL + "/api/v2/epubs/urn:orm:book:123", json("{'title': 'Small Book', 'files': '" + FILES
+                + "'}"));
+        bodies.put(FILES, json("{'count': 5, 'next': null, 'results': [" + entry("cover.xhtml", "chapter")
+                + "," + entry("ch1.xhtml", "chapter") + "," + entry("ch2.xhtml", "chapter") + ","
+                + entry("cover.gif", "image") + "," + entry("big.png", "image") + "]}"));
+        bodies.put(FILES + "cover.xhtml", html("<img src=\"cover.gif\" alt=\"Cover\"/>"));
+        bodies.put(FILES + "ch1.xhtml", html("<h1>One</h1><p><a href=\"ch2.xhtml#part\">Next</a></p>"
+                + "<img src=\"big.png\" alt=\"Big\"/>"));
+        bodies.put(FILES + "ch2.xhtml", html("<h1>Two</h1><p>Text</p><h2 id=\"part\">Part</h2>"));
+        bodies.put(FILES + "cover.gif", image(new BufferedImage(60, 80, BufferedImage.TYPE_INT_RGB), "gif"));
+        bodies.put(FILES + "big.png", big);
+        Path archive = temp.newFolder("archive").toPath();
+        try (BookArchive recording = BookArchive.record(archive.resolve("123.zip"),
+                (url, text) -> new ByteArrayInputStream(bodies.get(url)))) {
+            for (String url : bodies.keySet()) {
+                try (InputStream input = recording.open(url, true)) {
+                    input.readAllBytes();
+                }
+            }
+            recording.finish();
+        }
+        Properties properties = new Properties();
+        properties.setProperty("base.url", BASE_URL);
+        properties.setProperty("archive.mode", "replay");
+        properties.setProperty("archive.dir", archive.toString());
+        properties.setProperty("store.temp.dir", temp.newFolder("store").toString());
+        Context context = new Context(properties);
+        File mobi = new File(temp.getRoot(), "book.mobi");
+        try (BookData book = new BookData(context, "123")) {
+            book.fetch();
+            new MobiWriter(context, "123", Collections.singleton("mobi")).write(book, mobi);
+        }
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(mobi.toPath()));
+        // PalmDB record table, the records follow it in order
+        int records = file.getShort(76);
+        int[] offsets = new int[records + 1];
+        for (int i = 0; i < records; i++) {
+            offsets[i] = file.getInt(78 + i * 8);
+        }
+        offsets[records] = file.limit();
+        assertEquals(78 + records * 8 + 2, offsets[0]);
+        for (int i = 0; i < records; i++) {
+            assertTrue(offsets[i] < offsets[i + 1]);
+        }
+        int header = offsets[0];
+        int textRecords = file.getShort(header + 8);
+        int firstImage = file.getInt(header + 16 + 0x5C);
+        assertEquals(1, textRecords);
+        assertEquals(textRecords + 1, firstImage);
+        // Both images, the cover first, then FLIS, FCIS and EOF
+        assertEquals(firstImage + 2 + 3, records);
+        assertEquals('G', file.get(offsets[firstImage]));
+        for (int i = firstImage; i < firstImage + 2; i++) {
+            assertTrue(offsets[i + 1] - offsets[i] <= MobiWriter.MAX_IMAGE_RECORD);
+        }
+        assertEquals(0xFF, file.get(offsets[firstImage + 1]) & 0xFF);
+        assertEquals(Integer.valueOf(0), exth(file, header).get(201));
+        // The text ends with the byte of the split characters
+        String text = new String(file.array(), offsets[1], offsets[2] - offsets[1] - 1, StandardCharsets.UTF_8);
+        assertEquals(file.getInt(header + 4), text.getBytes(StandardCharsets.UTF_8).length);
+        assertTrue(text.contains("<img recindex=\"00001\""));
+        assertTrue(text.contains("<img recindex=\"00002\""));
+        Matcher link = Pattern.compile("<a filepos=(\\d{10})>Next</a>").matcher(text);
+        assertTrue(link.find());
+        assertTrue(target(text, link.group(1)).startsWith("<h2>Part</h2>"));
+        Matcher positions = Pattern.compile("filepos=(\\d{10})").matcher(text);
+        while (positions.find()) {
+            assertEquals('<', target(text, positions.group(1)).charAt(0));
+        }
+    }
+
+    private static String target(String text, String filepos) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int position = Integer.parseInt(filepos);
+        return new String(bytes, position, bytes.length - position, StandardCharsets.UTF_8);
+    }
+
+    private static Map<Integer, Integer> exth(ByteBuffer file, int header) {
+        int exth = header + 16 + file.getInt(header + 20);
+        assertEquals("EXTH", new String(file.array(), exth, 4, StandardCharsets.US_ASCII));
+        Map<Integer, Integer> values = new LinkedHashMap<>();
+        int position = exth + 12;
+        for (int i = 0; i < file.getInt(exth + 8); i++) {
+            int type = file.getInt(position);
+            int length = file.getInt(position + 4);
+            if (length == 12) {
+                values.put(type, file.getInt(position + 8));
+            }
+            position += length;
+        }
+        return values;
+    }
+
+    private static String entry(String fileName, String kind) {
+        String mediaType = "chapter".equals(kind) ? "application/xhtml+xml"
+                : fileName.endsWith(".gif") ? "image/gif" : "image/png";
+        return "{'url': '" + FILES + fileName + "', 'kind': '" + kind + "', 'media_type': '" + mediaType
+                + "', 'full_path': 'OEBPS/" + fileName + "', 'filename': '" + fileName + "'}";
+    }
+
+    private static byte[] json(String json) {
+        return json.replace('\'', '"').getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] html(String body) {
+        return ("<html><head><title>Chapter</title></head><body>" + body + "</body></html>")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Random pixels do not compress, so the image is bigger than a record
+    private static byte[] noise(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image(image, "png");
+    }
+
+    private static byte[] image(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, format, output);
+        return output.toByteArray();
+    }
+}
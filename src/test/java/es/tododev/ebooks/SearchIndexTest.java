@@ -0,0 +1,63 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SearchIndexTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void tokens() {
+        assertEquals(Arrays.asList("el", "camion", "llego", "a", "las", "3"),
+                SearchIndex.tokens("¡El camión llegó a las 3!"));
+        assertEquals(Arrays.asList(Arrays.asList("quick", "fox"), Arrays.asList("dog")),
+                SearchIndex.parse("\"Quick fox\" dog"));
+    }
+
+    @Test
+    public void search() throws IOException {
+        Path root = temp.getRoot().toPath();
+        SearchIndex.SegmentWriter first = new SearchIndex.SegmentWriter("111", "First", "first");
+        first.startChapter("ch1.html", "One");
+        first.text("The quick brown fox");
+        first.anchor("jump");
+        first.text("jumps over the lazy dog.");
+        first.startChapter("ch2.html", "Two");
+        first.text("A quick dog and a brown fox.");
+        first.write(root.resolve("111" + SearchIndex.EXTENSION));
+        SearchIndex.SegmentWriter second = new SearchIndex.SegmentWriter("222", "Second", "second");
+        second.startChapter("a.html", "A");
+        second.anchor("top");
+        second.text("Brown fox, quick");
+        second.write(root.resolve("222" + SearchIndex.EXTENSION));
+        try (SearchIndex index = new SearchIndex(root)) {
+            assertEquals(2, index.getBooks());
+            List<SearchIndex.Hit> hits = index.search("fox", 10);
+            assertEquals(3, hits.size());
+            assertEquals("ch1.html", hits.get(0).getChapter());
+            assertEquals("222", hits.get(2).getIsbn());
+            assertEquals(Arrays.asList("top"), hits.get(2).getAnchors());
+            hits = index.search("\"brown fox\" quick", 10);
+            assertEquals(3, hits.size());
+            hits = index.search("\"quick brown fox\"", 10);
+            assertEquals(1, hits.size());
+            assertEquals(0, hits.get(0).getAnchors().size());
+            hits = index.search("\"LAZY dog\"", 10);
+            assertEquals(1, hits.size());
+            assertEquals(Arrays.asList("jump"), hits.get(0).getAnchors());
+            assertEquals(0, index.search("\"fox quick\" dog", 10).size());
+            assertEquals(0, index.search("cat", 10).size());
+            assertEquals(1, index.search("fox", 1).size());
+        }
+    }
+}
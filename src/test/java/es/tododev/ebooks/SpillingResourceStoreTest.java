@@ -0,0 +1,80 @@
+package es.tododev.ebooks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillingResourceStoreTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void smallInMemoryBigInDisk() throws IOException {
+        Path root = temp.getRoot().toPath();
+        MemoryBudget budget = new MemoryBudget(100);
+        try (SpillingResourceStore store = new SpillingResourceStore(budget, 10, root, "book-")) {
+            StoredContent small = store.store(new byte[8]);
+            assertEquals(8, budget.getUsed());
+            StoredContent big = store.store(new byte[50]);
+            assertEquals(8, budget.getUsed());
+            assertEquals(50, big.size());
+            assertArrayEquals(new byte[8], small.readAllBytes());
+            assertArrayEquals(new byte[50], big.readAllBytes());
+        }
+        assertEquals(0, budget.getUsed());
+        assertEquals(0, Files.list(root).count());
+    }
+
+    @Test
+    public void budgetExhausted() throws IOException {
+        Path root = temp.getRoot().toPath();
+        MemoryBudget budget = new MemoryBudget(10);
+        try (SpillingResourceStore store = new SpillingResourceStore(budget, 10, root, "book-")) {
+            store.store(new byte[8]);
+            StoredContent spilled = store.store(new byte[8]);
+            assertEquals(8, budget.getUsed());
+            assertArrayEquals(new byte[8], spilled.readAllBytes());
+        }
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void readAllBytesIsACopy() throws IOException {
+        Path root = temp.getRoot().toPath();
+        try (SpillingResourceStore store = new SpillingResourceStore(new MemoryBudget(100), 10, root, "book-")) {
+            StoredContent content = store.store(new byte[] { 1, 2 });
+            content.readAllBytes()[0] = 9;
+            assertArrayEquals(new byte[] { 1, 2 }, content.readAllBytes());
+        }
+    }
+
+    @Test
+    public void closeReleasesEverythingAfterAFailure() throws IOException {
+        Path root = temp.getRoot().toPath();
+        MemoryBudget budget = new MemoryBudget(100);
+        SpillingResourceStore store = new SpillingResourceStore(budget, 10, root, "book-");
+        store.store(new byte[50]);
+        store.store(new byte[8]);
+        // A non empty folder where the spilled resource was, so it cannot be deleted
+        Path folder = Files.list(root).findFirst().get();
+        Path spilled = Files.list(folder).findFirst().get();
+        Files.delete(spilled);
+        Files.createFile(Files.createDirectory(spilled).resolve("locked"));
+        try {
+            store.close();
+            fail("The spilled resource cannot be deleted");
+        } catch (IOException e) {
+            assertEquals(1, e.getSuppressed().length);
+        }
+        assertEquals(0, budget.getUsed());
+    }
+}